@@ -0,0 +1,78 @@
+package no.kommune.bergen.tardis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the change log between two commits of a synthetic snapshot, for snapshots of different sizes and
+ * shares of changed rows, with both diff engines. The diff cache is not used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeLogBenchmark {
+
+    private static final String FILENAME = "bench.changes.txt";
+    private static final List<String> PRIMARY_KEYS = Collections.singletonList("ID");
+
+    @Param({"10000", "100000"})
+    int rows;
+
+    @Param({"0.001", "0.01", "0.1"})
+    double changeRate;
+
+    @Param({"MERGE_JOIN", "GIT"})
+    TardisConfiguration.DiffEngine diffEngine;
+
+    private File workingDirectory;
+    private ChangeLogCreator changeLogCreator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workingDirectory = Files.createTempDirectory("tardis-changelog-benchmark").toFile();
+        SnapshotStore snapshotStore = new SnapshotStore();
+        snapshotStore.setWorkingDirectory(workingDirectory.getAbsolutePath(), true);
+
+        List<String> snapshot = SyntheticSnapshots.create(rows);
+        File tmpFile = new File(workingDirectory, FILENAME + ".tmp");
+        snapshotStore.addSnapshot(FILENAME, SyntheticSnapshots.write(snapshot, tmpFile));
+        snapshotStore.commit("bench", Collections.singletonList(FILENAME));
+        snapshotStore.addSnapshot(FILENAME, SyntheticSnapshots.write(SyntheticSnapshots.change(snapshot, changeRate, 42), tmpFile));
+        snapshotStore.commit("bench", Collections.singletonList(FILENAME));
+
+        changeLogCreator = new ChangeLogCreator();
+        changeLogCreator.setSnapshotStore(snapshotStore);
+        changeLogCreator.setDiffEngine(diffEngine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SyntheticSnapshots.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public void changeLog() {
+        changeLogCreator.getDiff(FILENAME, PRIMARY_KEYS, "HEAD~1", "HEAD", OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,106 @@
+package no.kommune.bergen.tardis;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports a table from an in-memory H2 database. The snapshot is committed during setup, so every export reads and
+ * writes all rows, finds them unchanged and leaves the repository alone, which is what most scheduled exports do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    private static final String FILENAME = "bench.rows.txt";
+
+    @Param({"10000", "100000"})
+    int rows;
+
+    @Param({"4", "16"})
+    int columns;
+
+    private File workingDirectory;
+    private Connection conn;
+    private DatabaseTableSnapshotExporter exporter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:export" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+        conn = dataSource.getConnection();
+
+        StringBuilder create = new StringBuilder("create table rows (id integer primary key");
+        StringBuilder select = new StringBuilder("select x");
+        for (int i = 1; i < columns; i++) {
+            switch (i % 4) {
+                case 1:
+                    create.append(", c").append(i).append(" varchar(40)");
+                    select.append(", 'value ' || x");
+                    break;
+                case 2:
+                    create.append(", c").append(i).append(" decimal(12, 2)");
+                    select.append(", x * 1.25");
+                    break;
+                case 3:
+                    create.append(", c").append(i).append(" timestamp");
+                    select.append(", dateadd('SECOND', x, timestamp '2020-01-01 00:00:00')");
+                    break;
+                default:
+                    create.append(", c").append(i).append(" integer");
+                    select.append(", mod(x, 1000)");
+            }
+        }
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(create.append(")").toString());
+            statement.execute("insert into rows " + select.append(" from system_range(1, ").append(rows).append(")"));
+        }
+
+        workingDirectory = Files.createTempDirectory("tardis-export-benchmark").toFile();
+        SnapshotStore snapshotStore = new SnapshotStore();
+        snapshotStore.setWorkingDirectory(workingDirectory.getAbsolutePath());
+
+        exporter = new DatabaseTableSnapshotExporter();
+        exporter.setConn(conn);
+        exporter.setQuery("select * from rows order by id");
+        exporter.setFetchSize(1000);
+        exporter.setFilename(FILENAME);
+        exporter.setWorkingDirectory(workingDirectory.getAbsolutePath());
+        exporter.setSnapshotStore(snapshotStore);
+        exporter.export();
+        snapshotStore.commit("bench", Collections.singletonList(FILENAME));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        conn.close();
+        SyntheticSnapshots.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public boolean exportUnchanged() throws Exception {
+        return exporter.export();
+    }
+}
@@ -0,0 +1,135 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up commits by date and diffs snapshots in a repository with a long history, one commit an hour, with loose
+ * objects or after garbage collection. The history is written straight to git, since commits made through the
+ * snapshot store would all get the current time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private static final String FILENAME = "bench.history.txt";
+    private static final long START = 1577836800000L; // 2020-01-01
+    private static final long HOUR = 3600 * 1000L;
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "10000"})
+    int commits;
+
+    @Param({"false", "true"})
+    boolean packed;
+
+    private File workingDirectory;
+    private SnapshotStore snapshotStore;
+    private final Date[] dates = new Date[LOOKUPS];
+    private final SnapshotRange[] ranges = new SnapshotRange[LOOKUPS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workingDirectory = Files.createTempDirectory("tardis-history-benchmark").toFile();
+        writeHistory();
+
+        snapshotStore = new SnapshotStore();
+        snapshotStore.setWorkingDirectory(workingDirectory.getAbsolutePath());
+        if (packed) snapshotStore.garbageCollect();
+
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            dates[i] = new Date(START + (long) (random.nextDouble() * commits * HOUR));
+            long from = START + (long) (random.nextDouble() * (commits - 24) * HOUR);
+            ranges[i] = snapshotStore.resolve(FILENAME, new Date(from), new Date(from + 24 * HOUR));
+        }
+    }
+
+    private void writeHistory() throws IOException {
+        try (Git git = Git.init().setDirectory(workingDirectory).setBare(true).call();
+             ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+            Repository repository = git.getRepository();
+            ObjectId parent = commit(repository, inserter, inserter.insert(new TreeFormatter()), null, new Date(START - HOUR));
+            git.tag().setName("initial").setObjectId(git.getRepository().parseCommit(parent)).call();
+
+            List<String> snapshot = SyntheticSnapshots.create(200);
+            for (int i = 0; i < commits; i++) {
+                snapshot = SyntheticSnapshots.change(snapshot.subList(0, Math.min(snapshot.size(), 200)), 0.01, i);
+                TreeFormatter tree = new TreeFormatter();
+                tree.append(FILENAME, FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, SyntheticSnapshots.toBytes(snapshot)));
+                parent = commit(repository, inserter, inserter.insert(tree), parent, new Date(START + i * HOUR));
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private ObjectId commit(Repository repository, ObjectInserter inserter, ObjectId tree, ObjectId parent, Date when) throws IOException {
+        PersonIdent ident = new PersonIdent("tardis", "tardis@localhost", when, TimeZone.getTimeZone("UTC"));
+        CommitBuilder commitBuilder = new CommitBuilder();
+        commitBuilder.setTreeId(tree);
+        if (parent != null) commitBuilder.setParentId(parent);
+        commitBuilder.setAuthor(ident);
+        commitBuilder.setCommitter(ident);
+        commitBuilder.setMessage("bench");
+        ObjectId commitId = inserter.insert(commitBuilder);
+        inserter.flush();
+
+        RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(commitId);
+        refUpdate.forceUpdate();
+        return commitId;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SyntheticSnapshots.deleteRecursively(workingDirectory);
+    }
+
+    @Benchmark
+    public SnapshotRange resolveByDate() {
+        Date at = dates[next++ & (LOOKUPS - 1)];
+        return snapshotStore.resolve(FILENAME, at, at);
+    }
+
+    @Benchmark
+    public void gitDiff() {
+        snapshotStore.getDiff(ranges[next++ & (LOOKUPS - 1)], OutputStream.nullOutputStream());
+    }
+}
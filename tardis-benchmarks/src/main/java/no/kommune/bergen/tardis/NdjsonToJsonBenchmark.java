@@ -0,0 +1,53 @@
+package no.kommune.bergen.tardis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts 100 000 ndjson records to a json array, written in chunks of the given size. A chunk size of 1 is what
+ * the stream got before it had a bulk write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NdjsonToJsonBenchmark {
+
+    @Param({"1", "512", "8192"})
+    int chunkSize;
+
+    private byte[] ndjson;
+
+    @Setup
+    public void setUp() {
+        ndjson = SyntheticSnapshots.toBytes(SyntheticSnapshots.create(100000));
+    }
+
+    @Benchmark
+    public void convert() throws IOException {
+        try (NdjsonToJsonOutputStream out = new NdjsonToJsonOutputStream(OutputStream.nullOutputStream())) {
+            if (chunkSize == 1) {
+                for (byte b : ndjson) out.write(b);
+                return;
+            }
+            for (int off = 0; off < ndjson.length; off += chunkSize) {
+                out.write(ndjson, off, Math.min(chunkSize, ndjson.length - off));
+            }
+        }
+    }
+}
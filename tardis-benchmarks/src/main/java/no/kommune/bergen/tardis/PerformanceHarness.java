@@ -0,0 +1,365 @@
+package no.kommune.bergen.tardis;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.h2.jdbcx.JdbcDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Builds a repository the way a long running Tardis would, and measures the requests clients make against it.
+ *
+ * Tables of the given width and size are created in an in-memory H2 database. Each export cycle changes a share of
+ * the rows (the churn) and exports the data source through Tardis.exportGroup. A mix of change log requests, by
+ * commit id and by date, in the different output formats and with and without compression, is then replayed through
+ * RestService.getChanges. Export and request latencies, the heap high-water mark of each phase and the size of the
+ * repository are written as json. When a baseline from an earlier run is given, latencies that have grown by more
+ * than the tolerance are reported and the harness exits with status 1.
+ *
+ * All settings are system properties, see the perf profile in the pom for their names and defaults.
+ */
+public class PerformanceHarness {
+
+    private static final String DATA_SOURCE = "perf";
+    private static final String[] ACCEPT = {"application/x-ndjson", "application/json", "application/x-jackson-smile"};
+
+    private final int tableCount = Integer.getInteger("perf.tables", 4);
+    private final int columns = Integer.getInteger("perf.columns", 8);
+    private final int rows = Integer.getInteger("perf.rows", 100000);
+    private final double churn = Double.parseDouble(System.getProperty("perf.churn", "0.01"));
+    private final int cycles = Integer.getInteger("perf.cycles", 50);
+    private final int requests = Integer.getInteger("perf.requests", 500);
+    private final int warmupRequests = Integer.getInteger("perf.warmupRequests", 50);
+    private final File workingDirectory = new File(System.getProperty("perf.workingDirectory", "target/perf-repository"));
+    private final File output = new File(System.getProperty("perf.output", "target/perf-baseline.json"));
+    private final String baseline = System.getProperty("perf.baseline", "");
+    private final double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "1.25"));
+
+    private final Random random = new Random(42);
+    private final List<ObjectId> commits = new ArrayList<>();
+    private final List<Date> commitTimes = new ArrayList<>();
+    private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private Connection conn;
+    private DatabaseSnapshotExporter exporter;
+    private Tardis tardis;
+    private RestService restService;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new PerformanceHarness().run() ? 0 : 1);
+    }
+
+    boolean run() throws Exception {
+        if (cycles < 2) throw new IllegalArgumentException("perf.cycles must be at least 2");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("settings", settings());
+        try {
+            setUp();
+            result.put("export", exportCycles());
+            result.put("requests", replayRequests());
+            result.put("repository", repositorySize());
+        } finally {
+            if (exporter != null) exporter.shutdown();
+            if (conn != null) conn.close();
+        }
+
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        mapper.writeValue(output, result);
+        System.out.println(mapper.writeValueAsString(result));
+        System.out.println("Wrote " + output.getAbsolutePath());
+
+        return baseline.isEmpty() || compareWithBaseline(mapper.valueToTree(result), mapper.readTree(new File(baseline)));
+    }
+
+    private Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("tables", tableCount);
+        settings.put("columns", columns);
+        settings.put("rows", rows);
+        settings.put("churn", churn);
+        settings.put("cycles", cycles);
+        settings.put("requests", requests);
+        settings.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        settings.put("javaVersion", System.getProperty("java.version"));
+        return settings;
+    }
+
+    private void setUp() throws Exception {
+        SyntheticSnapshots.deleteRecursively(workingDirectory);
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:perf;DB_CLOSE_DELAY=-1");
+        conn = dataSource.getConnection();
+
+        TardisConfiguration configuration = new TardisConfiguration();
+        configuration.setWorkingDirectory(workingDirectory.getAbsolutePath());
+        configuration.addDatasource(DATA_SOURCE, dataSource);
+        TardisConfiguration.DataSourceConfig dataSourceConfig = new TardisConfiguration.DataSourceConfig();
+        dataSourceConfig.setName(DATA_SOURCE);
+        dataSourceConfig.setExportThreads(Math.min(tableCount, 4));
+        configuration.setDataSources(Collections.singletonList(dataSourceConfig));
+
+        List<Table> tables = new ArrayList<>();
+        for (int i = 0; i < tableCount; i++) {
+            createTable("t" + i);
+            Table table = new Table();
+            table.setName("t" + i);
+            table.setDataSourceName(DATA_SOURCE);
+            table.setQuery("select * from t" + i + " order by id");
+            table.setPrimaryKeys(Collections.singletonList("ID"));
+            table.setFetchSize(1000);
+            tables.add(table);
+        }
+        configuration.setTables(tables);
+
+        SnapshotStore snapshotStore = new SnapshotStore();
+        snapshotStore.setConfiguration(configuration);
+        exporter = new DatabaseSnapshotExporter();
+        exporter.setConfiguration(configuration);
+        exporter.setSnapshotStore(snapshotStore);
+        ChangeLogCreator changeLogCreator = new ChangeLogCreator();
+        changeLogCreator.setSnapshotStore(snapshotStore);
+
+        tardis = new Tardis();
+        tardis.setConfiguration(configuration);
+        tardis.setExporter(exporter);
+        tardis.setChangeLogCreator(changeLogCreator);
+        tardis.setSnapshotStore(snapshotStore);
+        restService = new RestService();
+        restService.setTardis(tardis);
+    }
+
+    private void createTable(String name) throws Exception {
+        StringBuilder create = new StringBuilder("create table " + name + " (id integer primary key");
+        StringBuilder select = new StringBuilder("select x");
+        for (int i = 1; i < columns; i++) {
+            switch (i % 4) {
+                case 1:
+                    create.append(", c").append(i).append(" varchar(40)");
+                    select.append(", 'value ' || x");
+                    break;
+                case 2:
+                    create.append(", c").append(i).append(" decimal(12, 2)");
+                    select.append(", x * 1.25");
+                    break;
+                case 3:
+                    create.append(", c").append(i).append(" timestamp");
+                    select.append(", dateadd('SECOND', x, timestamp '2020-01-01 00:00:00')");
+                    break;
+                default:
+                    create.append(", c").append(i).append(" integer");
+                    select.append(", mod(x, 1000)");
+            }
+        }
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(create.append(")").toString());
+            statement.execute("insert into " + name + " " + select.append(" from system_range(1, ").append(rows).append(")"));
+        }
+    }
+
+    /**
+     * Changes about churn of the rows of every table, a tenth of them by deleting and adding rows and the rest by
+     * updating them. The rows are picked by a hash of the id and the cycle, so every run changes the same rows.
+     */
+    private void churn(int cycle) throws Exception {
+        long modulus = 100000;
+        long updated = Math.round(churn * 0.9 * modulus);
+        long deleted = Math.round(churn * 0.05 * modulus);
+        long added = Math.round(churn * 0.05 * rows);
+        String pick = "mod(cast(id as bigint) * 7919 + " + cycle * 104729L + ", " + modulus + ")";
+        try (Statement statement = conn.createStatement()) {
+            for (int i = 0; i < tableCount; i++) {
+                String table = "t" + i;
+                statement.execute("delete from " + table + " where " + pick + " < " + deleted);
+                if (columns > 1) {
+                    statement.execute("update " + table + " set c1 = 'cycle " + cycle + " ' || id where " + pick + " >= " + deleted
+                            + " and " + pick + " < " + (deleted + updated));
+                }
+                if (added > 0) {
+                    long maxId;
+                    try (ResultSet resultSet = statement.executeQuery("select max(id) from " + table)) {
+                        resultSet.next();
+                        maxId = resultSet.getLong(1);
+                    }
+                    StringBuilder insert = new StringBuilder("insert into " + table + " (id");
+                    for (int c = 1; c < columns; c++) insert.append(", c").append(c);
+                    insert.append(") select ").append(maxId).append(" + x");
+                    for (int c = 1; c < columns; c++) insert.append(", null");
+                    statement.execute(insert.append(" from system_range(1, ").append(added).append(")").toString());
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> exportCycles() throws Exception {
+        resetPeakHeap();
+        long[] latencies = new long[cycles];
+        int written = 0;
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            if (cycle > 0) churn(cycle);
+            long start = System.nanoTime();
+            ExportReport report = tardis.exportGroup(DATA_SOURCE);
+            latencies[cycle] = System.nanoTime() - start;
+            if (report.getFailed() > 0) throw new IllegalStateException("Export cycle " + cycle + " failed: " + report);
+            written += report.getWritten();
+            commits.add(head());
+            commitTimes.add(new Date());
+            // Commit times are stored in seconds, so wait for the next second to keep the cycles apart by date
+            if (cycle < cycles - 1) Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+        }
+
+        Map<String, Object> export = latencySummary(latencies);
+        export.put("tablesWritten", written);
+        export.put("peakHeapBytes", peakHeap());
+        return export;
+    }
+
+    private ObjectId head() throws IOException {
+        try (Git git = Git.open(workingDirectory)) {
+            return git.getRepository().resolve("HEAD");
+        }
+    }
+
+    private Map<String, Object> replayRequests() throws Exception {
+        for (int i = 0; i < warmupRequests; i++) replayRequest();
+
+        resetPeakHeap();
+        long[] latencies = new long[requests];
+        long bytes = 0;
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            MockHttpServletResponse response = replayRequest();
+            latencies[i] = System.nanoTime() - start;
+            bytes += response.getContentAsByteArray().length;
+        }
+
+        Map<String, Object> replay = latencySummary(latencies);
+        replay.put("responseBytes", bytes);
+        replay.put("peakHeapBytes", peakHeap());
+        return replay;
+    }
+
+    /**
+     * Makes one request: half by commit id and the rest by date, over a period of up to ten export cycles, a third
+     * of them compressed.
+     */
+    private MockHttpServletResponse replayRequest() throws Exception {
+        String table = "t" + random.nextInt(tableCount);
+        int to = 1 + random.nextInt(commits.size() - 1);
+        int from = Math.max(0, to - 1 - random.nextInt(10));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/" + DATA_SOURCE + "/" + table);
+        request.addHeader("Accept", ACCEPT[random.nextInt(ACCEPT.length)]);
+        if (random.nextInt(3) == 0) request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        if (random.nextBoolean()) {
+            restService.getChanges(request, response, DATA_SOURCE, table, commits.get(from).name(), commits.get(to).name(), null, null);
+        } else {
+            UtcDateFormat df = new UtcDateFormat();
+            restService.getChanges(request, response, DATA_SOURCE, table, null, null,
+                    df.format(commitTimes.get(from)), df.format(commitTimes.get(to)));
+        }
+        if (response.getStatus() != 200) {
+            throw new IllegalStateException("Request for " + table + " failed with " + response.getStatus() + ": " + response.getErrorMessage());
+        }
+        return response;
+    }
+
+    private Map<String, Object> latencySummary(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", sorted.length);
+        summary.put("p50Millis", percentile(sorted, 0.5));
+        summary.put("p99Millis", percentile(sorted, 0.99));
+        summary.put("maxMillis", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        return summary;
+    }
+
+    private double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Returns the sum of the peak usage of the heap pools since the last reset. The pools peak at different times,
+     * so this is an upper bound of the heap used.
+     */
+    private long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private Map<String, Object> repositorySize() throws IOException {
+        File gitDirectory = new File(workingDirectory, ".git");
+        Map<String, Object> repository = new LinkedHashMap<>();
+        repository.put("commits", commits.size());
+        repository.put("gitDirectoryBytes", directorySize(gitDirectory.exists() ? gitDirectory : workingDirectory));
+        tardis.optimizeStorage();
+        repository.put("gitDirectoryBytesAfterGc", directorySize(gitDirectory.exists() ? gitDirectory : workingDirectory));
+        return repository;
+    }
+
+    private long directorySize(File directory) throws IOException {
+        try (Stream<java.nio.file.Path> files = Files.walk(directory.toPath())) {
+            return files.map(java.nio.file.Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        }
+    }
+
+    /**
+     * Compares the latencies with the baseline, and returns false if any of them has grown by more than the
+     * tolerance.
+     */
+    private boolean compareWithBaseline(JsonNode result, JsonNode baseline) {
+        if (!result.get("settings").toString().equals(String.valueOf(baseline.get("settings")))) {
+            System.out.println("The baseline was made with other settings, the comparison may not be meaningful");
+        }
+        boolean ok = true;
+        for (String phase : Arrays.asList("export", "requests")) {
+            for (String measure : Arrays.asList("p50Millis", "p99Millis")) {
+                double current = result.path(phase).path(measure).asDouble();
+                double previous = baseline.path(phase).path(measure).asDouble();
+                if (previous > 0 && current > previous * tolerance) {
+                    System.out.println("Regression in " + phase + "." + measure + ": " + current + " ms, baseline " + previous + " ms");
+                    ok = false;
+                }
+            }
+        }
+        if (ok) System.out.println("No latency regressions compared to " + this.baseline);
+        return ok;
+    }
+}
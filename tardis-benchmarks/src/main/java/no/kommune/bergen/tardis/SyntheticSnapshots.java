@@ -0,0 +1,70 @@
+package no.kommune.bergen.tardis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Snapshots made up for the benchmarks, in the format written by the exporter. The ids are even, so that added rows
+ * can be given odd ids between them and the snapshots stay sorted by primary key.
+ */
+final class SyntheticSnapshots {
+
+    private SyntheticSnapshots() {
+    }
+
+    static List<String> create(int rows) {
+        List<String> snapshot = new ArrayList<>(rows);
+        for (int i = 1; i <= rows; i++) {
+            snapshot.add(row(2 * i, "name " + i, i * 7 % 1000));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a copy of the snapshot where about changeRate of the rows are changed, a third each deleted, modified
+     * and followed by a new row.
+     */
+    static List<String> change(List<String> snapshot, double changeRate, long seed) {
+        Random random = new Random(seed);
+        List<String> changed = new ArrayList<>(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            double r = random.nextDouble();
+            int id = 2 * (i + 1);
+            if (r < changeRate / 3) continue;
+            if (r < changeRate * 2 / 3) {
+                changed.add(row(id, "changed " + random.nextInt(), random.nextInt(1000)));
+                continue;
+            }
+            changed.add(snapshot.get(i));
+            if (r < changeRate) changed.add(row(id + 1, "added " + random.nextInt(), random.nextInt(1000)));
+        }
+        return changed;
+    }
+
+    static String row(int id, String name, int amount) {
+        return "{\"ID\": " + id + ", \"NAME\": \"" + name + "\", \"AMOUNT\": " + amount + "}";
+    }
+
+    static byte[] toBytes(List<String> snapshot) {
+        return (String.join("\n", snapshot) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static File write(List<String> snapshot, File file) throws IOException {
+        Files.write(file.toPath(), toBytes(snapshot));
+        return file;
+    }
+
+    static void deleteRecursively(File directory) throws IOException {
+        if (directory == null || !directory.exists()) return;
+        try (Stream<File> files = Files.walk(directory.toPath()).sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile)) {
+            files.forEach(File::delete);
+        }
+    }
+}
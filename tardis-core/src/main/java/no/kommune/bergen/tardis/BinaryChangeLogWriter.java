@@ -0,0 +1,70 @@
+package no.kommune.bergen.tardis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+
+/**
+ * Writes change records with a binary generator, e.g. Smile or CBOR. The snapshot lines are parsed once and their
+ * tokens copied straight into the generator, so consumers never see text json. Decimals keep the precision of the
+ * snapshot text.
+ */
+class BinaryChangeLogWriter implements ChangeLogWriter {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final SerializedString CHANGE_TYPE = new SerializedString("changeType");
+    private static final SerializedString OLD_RECORD = new SerializedString("oldRecord");
+    private static final SerializedString NEW_RECORD = new SerializedString("newRecord");
+
+    private final JsonGenerator g;
+
+    BinaryChangeLogWriter(JsonGenerator g) {
+        this.g = g;
+    }
+
+    @Override
+    public void added(String newRecord) throws IOException {
+        g.writeStartObject();
+        g.writeFieldName(CHANGE_TYPE);
+        g.writeString("add");
+        writeRecord(NEW_RECORD, newRecord);
+        g.writeEndObject();
+    }
+
+    @Override
+    public void deleted(String oldRecord) throws IOException {
+        g.writeStartObject();
+        g.writeFieldName(CHANGE_TYPE);
+        g.writeString("delete");
+        writeRecord(OLD_RECORD, oldRecord);
+        g.writeEndObject();
+    }
+
+    @Override
+    public void changed(String oldRecord, String newRecord) throws IOException {
+        g.writeStartObject();
+        g.writeFieldName(CHANGE_TYPE);
+        g.writeString("modify");
+        writeRecord(OLD_RECORD, oldRecord);
+        writeRecord(NEW_RECORD, newRecord);
+        g.writeEndObject();
+    }
+
+    private void writeRecord(SerializedString fieldName, String record) throws IOException {
+        g.writeFieldName(fieldName);
+        try (JsonParser parser = jsonFactory.createParser(record)) {
+            // Decimals are copied as BigDecimal, since copying them as they are parsed turns them into doubles
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    g.writeNumber(parser.getDecimalValue());
+                } else {
+                    g.copyCurrentEvent(parser);
+                }
+            }
+        }
+    }
+}
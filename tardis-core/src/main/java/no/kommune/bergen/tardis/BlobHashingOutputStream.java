@@ -0,0 +1,51 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Computes the git blob id of the bytes written through it. Git hashes the length before the content, so the length
+ * has to be guessed up front: the stream assumes the length of the committed snapshot, and can only tell whether
+ * the content equals a blob of that length.
+ */
+class BlobHashingOutputStream extends FilterOutputStream {
+
+    private final MessageDigest digest = Constants.newMessageDigest();
+    private final long expectedLength;
+    private long length;
+
+    BlobHashingOutputStream(OutputStream out, long expectedLength) {
+        super(out);
+        this.expectedLength = expectedLength;
+        digest.update(Constants.encodedTypeString(Constants.OBJ_BLOB));
+        digest.update((byte) ' ');
+        digest.update(Constants.encodeASCII(expectedLength));
+        digest.update((byte) 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        digest.update((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        digest.update(b, off, len);
+        length += len;
+    }
+
+    /**
+     * Returns true if the bytes written are the content of the given blob. Must be called after the last write.
+     */
+    boolean matches(ObjectId blobId) {
+        return length == expectedLength && ObjectId.fromRaw(digest.digest()).equals(blobId);
+    }
+}
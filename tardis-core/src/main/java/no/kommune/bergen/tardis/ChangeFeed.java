@@ -0,0 +1,436 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the changes of a table to subscribers as server-sent events. A subscriber first gets the changes since the
+ * revision it asked for, and then one event for every commit that changes the table. The id of each event is the
+ * commit it brings the subscriber up to, so a client that reconnects with Last-Event-ID picks up where it left off.
+ *
+ * Subscribers do not hold a request thread while they wait. The change log of a commit is computed once for all the
+ * subscribers that are at the same commit, and its events are handed to each of them through a short queue, which a
+ * pool of send threads drains. A subscriber that falls behind gets the changes of several commits at once. The diff
+ * waits for the slowest subscriber, and a subscriber whose client stops reading is dropped once a send has been
+ * blocked for longer than the send timeout, so a stalled client holds up the others no longer than that.
+ */
+@Component
+public class ChangeFeed implements SnapshotStore.CommitListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+
+    @Autowired
+    private Tardis tardis;
+
+    // The size above which the changes of a commit are split over several events
+    static final int EVENT_SIZE = 65536;
+    // The events waiting to be sent to a subscriber, before the diff waits for it
+    private static final int QUEUED_EVENTS = 4;
+
+    private SnapshotStore snapshotStore;
+    private long timeout;
+    private long heartbeatInterval = 30000;
+    private long sendTimeout = 30000;
+
+    private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor sendExecutor = createPool(8, "tardis-feed-");
+    private final ThreadPoolExecutor diffExecutor = createPool(Runtime.getRuntime().availableProcessors(), "tardis-feed-diff-");
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("tardis-feed-heartbeat-"));
+
+    private static ThreadPoolExecutor createPool(int threads, String threadNamePrefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory(threadNamePrefix));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Autowired
+    void setSnapshotStore(SnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+        snapshotStore.addCommitListener(this);
+    }
+
+    @Autowired
+    public void setConfiguration(TardisConfiguration configuration) {
+        timeout = configuration.getStreamTimeout();
+        heartbeatInterval = configuration.getStreamHeartbeatInterval();
+        sendTimeout = configuration.getStreamSendTimeout();
+        int threads = configuration.getStreamThreads();
+        if (threads > sendExecutor.getMaximumPoolSize()) {
+            sendExecutor.setMaximumPoolSize(threads);
+            sendExecutor.setCorePoolSize(threads);
+        } else {
+            sendExecutor.setCorePoolSize(threads);
+            sendExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    void setTardis(Tardis tardis) {
+        this.tardis = tardis;
+    }
+
+    @PostConstruct
+    public void startHeartbeat() {
+        if (heartbeatInterval > 0) {
+            heartbeatExecutor.scheduleWithFixedDelay(this::sendHeartbeats, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+        if (sendTimeout > 0) {
+            long interval = Math.max(sendTimeout / 2, 1);
+            heartbeatExecutor.scheduleWithFixedDelay(this::dropStalledSubscribers, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        snapshotStore.removeCommitListener(this);
+        heartbeatExecutor.shutdownNow();
+        diffExecutor.shutdownNow();
+        sendExecutor.shutdownNow();
+        subscriptions.values().forEach(set -> set.forEach(subscription -> subscription.emitter.complete()));
+        subscriptions.clear();
+    }
+
+    /**
+     * Subscribes to the changes of a table made after the revision since, or from now on if since is null.
+     */
+    SseEmitter subscribe(String dataSourceName, String tableName, String since) {
+        return subscribe(dataSourceName, tableName, since, new SseEmitter(timeout));
+    }
+
+    SseEmitter subscribe(String dataSourceName, String tableName, String since, SseEmitter emitter) {
+        Table table = tardis.getTable(dataSourceName, tableName);
+        ObjectId head = snapshotStore.getHead();
+        ObjectId from = since == null ? head : tardis.resolve(dataSourceName, tableName, since, head.name()).getFromCommit();
+
+        Subscription subscription = new Subscription(dataSourceName, table, emitter, from);
+        subscriptions.computeIfAbsent(table.getFilename(), filename -> ConcurrentHashMap.newKeySet()).add(subscription);
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(e -> subscription.close());
+
+        // Sends the backlog, and any commit made while subscribing
+        subscription.update();
+        return emitter;
+    }
+
+    /**
+     * Starts one diff for each group of subscribers at the same commit. Subscribers still busy with an earlier commit
+     * catch up when they are done.
+     */
+    @Override
+    public void committed(ObjectId commitId, Set<String> filenames) {
+        for (String filename : filenames) {
+            Set<Subscription> subscribers = subscriptions.get(filename);
+            if (subscribers == null) continue;
+
+            Map<ObjectId, List<Subscription>> groups = new HashMap<>();
+            for (Subscription subscription : subscribers) {
+                ObjectId from = subscription.claim(commitId);
+                if (from != null) groups.computeIfAbsent(from, commit -> new ArrayList<>()).add(subscription);
+            }
+            groups.forEach((from, group) -> sendChanges(group, from, commitId));
+        }
+    }
+
+    int getSubscriberCount() {
+        return subscriptions.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * Has a comment sent to every idle subscriber, which keeps idle connections from being closed by proxies and
+     * finds the subscribers that have gone away.
+     */
+    private void sendHeartbeats() {
+        subscriptions.values().forEach(set -> set.forEach(Subscription::heartbeat));
+    }
+
+    /**
+     * Drops the subscribers whose client has not taken a send for longer than the send timeout.
+     */
+    void dropStalledSubscribers() {
+        long now = System.nanoTime();
+        subscriptions.values().forEach(set -> set.forEach(subscription -> {
+            long sendingSince = subscription.sendingSince;
+            if (sendingSince != 0 && now - sendingSince > TimeUnit.MILLISECONDS.toNanos(sendTimeout)) {
+                subscription.drop();
+            }
+        }));
+    }
+
+    private void sendChanges(List<Subscription> group, ObjectId from, ObjectId to) {
+        diffExecutor.execute(() -> {
+            Subscription first = group.get(0);
+            try {
+                SnapshotRange range = tardis.resolve(first.dataSourceName, first.table.getName(), from.name(), to.name());
+                if (!range.isUnchanged()) {
+                    EventOutputStream out = new EventOutputStream(group);
+                    tardis.getDiff(first.dataSourceName, first.table.getName(), range, ChangeLogFormat.NDJSON, out);
+                    out.finish(to);
+                }
+            } catch (Exception e) {
+                group.forEach(subscription -> subscription.fail(e));
+                return;
+            }
+            group.forEach(subscription -> subscription.caughtUp(to));
+        });
+    }
+
+    private class Subscription {
+        private final String dataSourceName;
+        private final Table table;
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue = new ArrayBlockingQueue<>(QUEUED_EVENTS);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile boolean closed;
+        private volatile Exception failure;
+        private volatile long sendingSince;
+        // Guarded by this
+        private ObjectId lastCommit;
+        private boolean busy;
+        private boolean updated;
+
+        Subscription(String dataSourceName, Table table, SseEmitter emitter, ObjectId lastCommit) {
+            this.dataSourceName = dataSourceName;
+            this.table = table;
+            this.emitter = emitter;
+            this.lastCommit = lastCommit;
+        }
+
+        /**
+         * Returns the commit the subscriber is at, if it needs the changes up to the commit to and no diff is feeding
+         * it already. The caller then starts the diff. A busy subscriber is updated when it is done.
+         */
+        synchronized ObjectId claim(ObjectId to) {
+            if (closed) return null;
+            if (busy) {
+                updated = true;
+                return null;
+            }
+            if (lastCommit.equals(to)) return null;
+            busy = true;
+            return lastCommit;
+        }
+
+        /**
+         * Sends the changes up to HEAD in a diff of its own.
+         */
+        void update() {
+            ObjectId head = snapshotStore.getHead();
+            ObjectId from = claim(head);
+            if (from != null) sendChanges(Collections.singletonList(this), from, head);
+        }
+
+        void caughtUp(ObjectId to) {
+            boolean behind;
+            synchronized (this) {
+                lastCommit = to;
+                busy = false;
+                behind = updated;
+                updated = false;
+            }
+            if (behind) update();
+        }
+
+        /**
+         * Queues a heartbeat, unless the subscription is busy sending anyway.
+         */
+        void heartbeat() {
+            if (sendingSince == 0 && queue.isEmpty() && queue.offer(SseEmitter.event().comment("heartbeat"))) schedule();
+        }
+
+        /**
+         * Queues an event for the send threads, and waits while the queue is full. Returns false if the subscription
+         * is closed.
+         */
+        boolean enqueue(SseEmitter.SseEventBuilder event) throws InterruptedIOException {
+            try {
+                while (!closed) {
+                    if (queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+                        schedule();
+                        return true;
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a subscriber to " + table.getFilename());
+            }
+        }
+
+        private void schedule() {
+            if (!closed && scheduled.compareAndSet(false, true)) {
+                sendExecutor.execute(this::sendQueued);
+            }
+        }
+
+        private void sendQueued() {
+            try {
+                SseEmitter.SseEventBuilder event;
+                while (!closed && (event = queue.poll()) != null) {
+                    send(event);
+                }
+            } catch (Exception e) {
+                failure = e;
+                close();
+            } finally {
+                scheduled.set(false);
+            }
+            if (failure != null) {
+                complete();
+            } else if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void send(SseEmitter.SseEventBuilder event) throws IOException {
+            sendingSince = System.nanoTime();
+            try {
+                emitter.send(event);
+            } finally {
+                sendingSince = 0;
+            }
+        }
+
+        /**
+         * Closes the subscription and fails the emitter, without sending what is still queued. The emitter is locked
+         * while it sends, so it is completed by the send thread if one is busy with it.
+         */
+        void fail(Exception e) {
+            LOG.debug("Closing subscription to " + table.getFilename() + ": " + e.getMessage());
+            failure = e;
+            close();
+            queue.clear();
+            if (scheduled.compareAndSet(false, true)) sendExecutor.execute(this::complete);
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) emitter.completeWithError(failure);
+        }
+
+        /**
+         * Stops sending to a client that does not read.
+         */
+        void drop() {
+            LOG.info("Dropping a subscriber to " + table.getFilename() + " whose send has been blocked for more than " + sendTimeout + " ms");
+            fail(new IOException("Send timed out"));
+        }
+
+        void close() {
+            closed = true;
+            Set<Subscription> subscribers = subscriptions.get(table.getFilename());
+            if (subscribers != null) subscribers.remove(this);
+        }
+    }
+
+    /**
+     * Splits a change log into events of about EVENT_SIZE characters, with each change on a data line of its own,
+     * which clients join with newlines again, and queues each event for every subscriber in the group. Only the last
+     * event gets the id of the commit, and only when the whole change log has been read, so a client that reconnects
+     * in the middle of a commit, or after the diff failed, gets all of it again.
+     */
+    private static class EventOutputStream extends OutputStream {
+        private final List<Subscription> group;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+        private final StringBuilder data = new StringBuilder();
+
+        EventOutputStream(List<Subscription> group) {
+            this.group = group;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                endLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, end - start);
+        }
+
+        /**
+         * Adds the line to the event, after sending the event if it is full. The last line is always kept for the
+         * event with the id.
+         */
+        private void endLine() throws IOException {
+            if (line.size() == 0) return;
+            if (data.length() >= EVENT_SIZE) {
+                publish(null);
+                data.setLength(0);
+            }
+            if (data.length() > 0) data.append("\ndata:");
+            data.append(line.toString(StandardCharsets.UTF_8));
+            line.reset();
+        }
+
+        /**
+         * Sends the last event, with the id of the commit the change log ends at.
+         */
+        void finish(ObjectId to) throws IOException {
+            endLine();
+            if (data.length() > 0) publish(to);
+            data.setLength(0);
+        }
+
+        // The diff closes the stream when it is done, before the last event can be sent
+        @Override
+        public void close() throws IOException {
+            endLine();
+        }
+
+        private void publish(ObjectId id) throws IOException {
+            String event = data.toString();
+            boolean subscribed = false;
+            for (Subscription subscription : group) {
+                // A builder can only be built once, so each subscriber gets one of its own
+                SseEmitter.SseEventBuilder builder = SseEmitter.event();
+                if (id != null) builder.id(id.name());
+                builder.data(event);
+                subscribed |= subscription.enqueue(builder);
+            }
+            if (!subscribed) throw new IOException("No subscribers left");
+        }
+    }
+}
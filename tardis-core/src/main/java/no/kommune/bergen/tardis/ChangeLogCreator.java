@@ -1,7 +1,7 @@
 package no.kommune.bergen.tardis;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
@@ -11,65 +11,120 @@ import org.springframework.stereotype.Component;
 import java.io.*;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 @Component
 public class ChangeLogCreator {
 
+    private static final SmileFactory smileFactory = new SmileFactory();
+    private static final CBORFactory cborFactory = new CBORFactory();
+
     @Autowired
     private SnapshotStore snapshotStore;
 
+    private DiffCache diffCache;
+
+    private TardisConfiguration.DiffEngine diffEngine = TardisConfiguration.DiffEngine.MERGE_JOIN;
+
     public void setSnapshotStore(SnapshotStore snapshotStore) {
         this.snapshotStore = snapshotStore;
     }
 
+    @Autowired
+    void setDiffCache(DiffCache diffCache) {
+        this.diffCache = diffCache;
+    }
+
+    @Autowired
+    public void setConfiguration(TardisConfiguration configuration) {
+        setDiffEngine(configuration.getDiffEngine());
+    }
+
+    void setDiffEngine(TardisConfiguration.DiffEngine diffEngine) {
+        this.diffEngine = diffEngine;
+    }
+
     public void getDiff(String filename, Collection<String> primaryKeyColumns, Date from, Date to, OutputStream out) {
-        byte[] diff = snapshotStore.getDiff(filename, from, to);
-        createJsonDiffStream(primaryKeyColumns, diff, out);
+        createJsonDiffStream(filename, primaryKeyColumns, from, to, out);
     }
 
     void getDiff(String filename, Collection<String> primaryKeyColumns, String fromRevision, String toRevision, OutputStream out) {
-        byte[] diff = snapshotStore.getDiff(filename, fromRevision, toRevision);
-        createJsonDiffStream(primaryKeyColumns, diff, out);
+        createJsonDiffStream(filename, primaryKeyColumns, fromRevision, toRevision, out);
+    }
+
+    private void createJsonDiffStream(String filename, Collection<String> primaryKeyColumns, Object fromRevision, Object toRevision, OutputStream out) {
+        writeChangeLog(snapshotStore.resolve(filename, fromRevision, toRevision), primaryKeyColumns, out);
+    }
+
+    void writeChangeLog(SnapshotRange range, Collection<String> primaryKeyColumns, OutputStream out) {
+        writeChangeLog(range, primaryKeyColumns, ChangeLogFormat.NDJSON, out);
     }
 
-    private void createJsonDiffStream(Collection<String> primaryKeyColumns, byte[] diff, OutputStream out) {
+    void writeChangeLog(SnapshotRange range, Collection<String> primaryKeyColumns, ChangeLogFormat format, OutputStream out) {
         try {
-            JsonGenerator g = createJsonGenerator(out);
-
-            try(FilteredLinesReader deleted = new FilteredLinesReader(new InputStreamReader(new ByteArrayInputStream(diff), "UTF-8"), "-{");
-                FilteredLinesReader added = new FilteredLinesReader(new InputStreamReader(new ByteArrayInputStream(diff), "UTF-8"), "+{")) {
-
-                String deletedLine = deleted.readLine();
-                String addedLine = added.readLine();
-
-                while (addedLine != null || deletedLine != null) {
-                    Map<String, Object> deletedRecord = getRecord(deletedLine);
-                    Map<String, Object> addedRecord = getRecord(addedLine);
-
-                    int compareResult = compareRecords(deletedRecord, addedRecord, primaryKeyColumns);
-
-                    if (compareResult == 0) {
-                        generateChangedRecord(g, deletedLine, addedLine);
-                        addedLine = added.readLine();
-                        deletedLine = deleted.readLine();
-                    } else if (compareResult > 0) {
-                        generateAddedRecord(g, addedLine);
-                        addedLine = added.readLine();
-                    } else {
-                        generateDeletedRecord(g, deletedLine);
-                        deletedLine = deleted.readLine();
-                    }
+            DiffCache.Capture capture = null;
+            if (diffCache != null && !range.isUnchanged()) {
+                DiffCache.Key key = new DiffCache.Key(range.getFromBlob(), range.getToBlob(), primaryKeyColumns, format);
+                byte[] cached = diffCache.get(key);
+                if (cached != null) {
+                    out.write(cached);
+                    out.close();
+                    return;
                 }
+                out = capture = diffCache.capture(key, out);
             }
-            g.writeRaw("\n");
-            g.close();
+
+            // The generators are only closed when the diff succeeds, so a failed diff leaves out open and uncached
+            if (format != ChangeLogFormat.NDJSON) {
+                writeBinaryChangeLog(range, primaryKeyColumns, format, out);
+            } else {
+                JsonGenerator g = createJsonGenerator(out);
+                findChanges(range, primaryKeyColumns, createChangeLogWriter(g));
+                g.writeRaw("\n");
+                g.close();
+            }
+            if (capture != null) capture.complete();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void writeBinaryChangeLog(SnapshotRange range, Collection<String> primaryKeyColumns, ChangeLogFormat format, OutputStream out) throws IOException {
+        com.fasterxml.jackson.core.JsonFactory factory = format == ChangeLogFormat.SMILE ? smileFactory : cborFactory;
+        com.fasterxml.jackson.core.JsonGenerator g = factory.createGenerator(out);
+        findChanges(range, primaryKeyColumns, new BinaryChangeLogWriter(g));
+        g.close();
+    }
+
+    private void findChanges(SnapshotRange range, Collection<String> primaryKeyColumns, ChangeLogWriter writer) throws IOException {
+        if (diffEngine == TardisConfiguration.DiffEngine.GIT) {
+            try (ChangeLogMerger merger = new ChangeLogMerger(primaryKeyColumns, writer)) {
+                snapshotStore.getDiff(range, merger);
+            }
+        } else {
+            snapshotStore.readSnapshots(range,
+                    (fromSnapshot, toSnapshot) -> new SnapshotJoin(primaryKeyColumns, writer).join(fromSnapshot, toSnapshot));
+        }
+    }
+
+    private ChangeLogWriter createChangeLogWriter(JsonGenerator g) {
+        return new ChangeLogWriter() {
+            @Override
+            public void added(String newRecord) throws IOException {
+                generateAddedRecord(g, newRecord);
+            }
+
+            @Override
+            public void deleted(String oldRecord) throws IOException {
+                generateDeletedRecord(g, oldRecord);
+            }
+
+            @Override
+            public void changed(String oldRecord, String newRecord) throws IOException {
+                generateChangedRecord(g, oldRecord, newRecord);
+            }
+        };
+    }
+
     public JsonGenerator createJsonGenerator(OutputStream out) throws IOException {
         JsonGenerator g;
         JsonFactory f = new JsonFactory();
@@ -78,7 +133,7 @@ public class ChangeLogCreator {
         return g;
     }
 
-    public void generateChangedRecord(JsonGenerator g, String deletedLine, String addedLine) throws Exception {
+    public void generateChangedRecord(JsonGenerator g, String deletedLine, String addedLine) throws IOException {
         g.writeStartObject();
         g.writeStringField("changeType", "modify");
         writeRawField(g, "oldRecord", deletedLine);
@@ -86,14 +141,14 @@ public class ChangeLogCreator {
         g.writeEndObject();
     }
 
-    public void generateDeletedRecord(JsonGenerator g, String deletedLine) throws Exception {
+    public void generateDeletedRecord(JsonGenerator g, String deletedLine) throws IOException {
         g.writeStartObject();
         g.writeStringField("changeType", "delete");
         writeRawField(g, "oldRecord", deletedLine);
         g.writeEndObject();
     }
 
-    public void generateAddedRecord(JsonGenerator g, String addedLine) throws Exception {
+    public void generateAddedRecord(JsonGenerator g, String addedLine) throws IOException {
         g.writeStartObject();
         g.writeStringField("changeType", "add");
         writeRawField(g, "newRecord", addedLine);
@@ -104,28 +159,4 @@ public class ChangeLogCreator {
         g.writeFieldName(fieldname);
         g.writeRawValue(value);
     }
-
-    private int compareRecords(Map<String, Object> a, Map<String, Object> b, Collection<String> primaryKeyColumns) {
-        for (String primaryKey : primaryKeyColumns) {
-            Comparable keyA = (Comparable) a.get(primaryKey);
-            Comparable keyB = (Comparable) b.get(primaryKey);
-
-            if (keyA == null && keyB == null) continue;
-            if (keyA != null && keyB == null) return -1;
-            if (keyA == null && keyB != null) return 1;
-
-            int result = keyA.compareTo(keyB);
-            if (result == 0) continue;
-            return result;
-        }
-        return 0;
-    }
-
-    private Map<String, Object> getRecord(String line) throws IOException {
-        if (line == null) return new HashMap<>();
-
-        return new ObjectMapper().readValue(line, new TypeReference<HashMap<String, Object>>() {
-        });
-    }
 }
-
@@ -0,0 +1,11 @@
+package no.kommune.bergen.tardis;
+
+/**
+ * The formats ChangeLogCreator writes change logs in. Json arrays are produced from ndjson by the web layer.
+ * The binary formats are a sequence of change objects without separators.
+ */
+enum ChangeLogFormat {
+    NDJSON,
+    SMILE,
+    CBOR
+}
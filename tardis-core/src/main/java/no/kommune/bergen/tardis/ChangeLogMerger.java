@@ -0,0 +1,127 @@
+package no.kommune.bergen.tardis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Turns a unified diff of two snapshots into a change log in a single pass. The diff is written to this stream as it
+ * is produced, and only the removed and added lines of the current hunk are kept in memory. As the snapshots are
+ * ordered by primary key, a record that has changed is always removed and added within the same hunk.
+ */
+class ChangeLogMerger extends OutputStream {
+
+    private final RecordKeyExtractor keyExtractor;
+    private final ChangeLogWriter writer;
+
+    private final List<String> deleted = new ArrayList<>();
+    private final List<String> added = new ArrayList<>();
+
+    private byte[] line = new byte[8192];
+    private int lineLength;
+
+    ChangeLogMerger(Collection<String> primaryKeyColumns, ChangeLogWriter writer) {
+        this.keyExtractor = new RecordKeyExtractor(primaryKeyColumns);
+        this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == '\n') {
+            endOfLine();
+        } else {
+            ensureCapacity(1);
+            line[lineLength++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] != '\n') continue;
+            append(b, start, i - start);
+            endOfLine();
+            start = i + 1;
+        }
+        append(b, start, end - start);
+    }
+
+    /**
+     * Merges what is left of the last hunk. Does not close the underlying writer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lineLength > 0) endOfLine();
+        mergeHunk();
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (len == 0) return;
+        ensureCapacity(len);
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (lineLength + extra <= line.length) return;
+        line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + extra));
+    }
+
+    private void endOfLine() throws IOException {
+        int length = lineLength;
+        lineLength = 0;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        if (length < 2) return;
+
+        if (line[0] == '@' && line[1] == '@') {
+            mergeHunk();
+        } else if (line[1] == '{') {
+            if (line[0] == '-') deleted.add(decode(length));
+            else if (line[0] == '+') added.add(decode(length));
+        }
+    }
+
+    private String decode(int length) {
+        return new String(line, 1, length - 1, StandardCharsets.UTF_8);
+    }
+
+    private void mergeHunk() throws IOException {
+        Iterator<String> deletedLines = deleted.iterator();
+        Iterator<String> addedLines = added.iterator();
+
+        String deletedLine = next(deletedLines);
+        String addedLine = next(addedLines);
+        Object[] deletedKey = keyExtractor.extract(deletedLine);
+        Object[] addedKey = keyExtractor.extract(addedLine);
+
+        while (addedLine != null || deletedLine != null) {
+            int compareResult = keyExtractor.compare(deletedKey, addedKey);
+
+            if (compareResult == 0) {
+                writer.changed(deletedLine, addedLine);
+                addedLine = next(addedLines);
+                addedKey = keyExtractor.extract(addedLine);
+                deletedLine = next(deletedLines);
+                deletedKey = keyExtractor.extract(deletedLine);
+            } else if (compareResult > 0) {
+                writer.added(addedLine);
+                addedLine = next(addedLines);
+                addedKey = keyExtractor.extract(addedLine);
+            } else {
+                writer.deleted(deletedLine);
+                deletedLine = next(deletedLines);
+                deletedKey = keyExtractor.extract(deletedLine);
+            }
+        }
+
+        deleted.clear();
+        added.clear();
+    }
+
+    private static String next(Iterator<String> lines) {
+        return lines.hasNext() ? lines.next() : null;
+    }
+}
@@ -0,0 +1,126 @@
+package no.kommune.bergen.tardis;
+
+import org.codehaus.jackson.io.JsonStringEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interleaves the ndjson change logs of several tables in one stream. Each change gets the name of its table as the
+ * first field, and is written as a whole line, so the change logs of tables diffed at the same time never mix.
+ */
+class ChangeLogMultiplexer implements Closeable {
+
+    private static final byte NEWLINE = '\n';
+
+    private final OutputStream out;
+    private boolean empty = true;
+    private boolean closed;
+
+    ChangeLogMultiplexer(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns a stream for the ndjson change log of a table. Close it when the change log is complete.
+     */
+    OutputStream open(String tableName) {
+        return new TableOutputStream(prefix(tableName));
+    }
+
+    /**
+     * Writes a line telling that the change log of the table could not be completed.
+     */
+    synchronized void writeError(String tableName, String message) throws IOException {
+        checkNotClosed();
+        out.write(prefix(tableName));
+        out.write(("\"error\": \"" + new String(JsonStringEncoder.getInstance().quoteAsString(String.valueOf(message))) + "\"}")
+                .getBytes(StandardCharsets.UTF_8));
+        out.write(NEWLINE);
+        empty = false;
+    }
+
+    private synchronized void writeChange(byte[] prefix, byte[] line, int off, int len) throws IOException {
+        checkNotClosed();
+        out.write(prefix);
+        out.write(line, off, len);
+        out.write(NEWLINE);
+        empty = false;
+    }
+
+    /**
+     * Ends the stream the way a single change log ends, with a newline if there were no changes, and closes out.
+     * Table change logs still being written after that fail instead of writing to a response that may be reused.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (empty) out.write(NEWLINE);
+        out.close();
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) throw new IOException("The change log stream is closed");
+    }
+
+    private static byte[] prefix(String tableName) {
+        return ("{\"table\": \"" + new String(JsonStringEncoder.getInstance().quoteAsString(tableName)) + "\", ")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class TableOutputStream extends OutputStream {
+
+        private final byte[] prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+
+        TableOutputStream(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == NEWLINE) {
+                writeLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (b[i] == NEWLINE) {
+                    line.write(b, start, i - start);
+                    writeLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, end - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeLine();
+        }
+
+        /**
+         * Writes the buffered change with the table field in front of the others. Blank lines are dropped.
+         */
+        private void writeLine() throws IOException {
+            if (line.size() == 0) return;
+            byte[] bytes = line.toByteArray();
+            line.reset();
+            if (bytes[0] == '{') {
+                writeChange(prefix, bytes, 1, bytes.length - 1);
+            } else {
+                writeChange(new byte[0], bytes, 0, bytes.length);
+            }
+        }
+    }
+}
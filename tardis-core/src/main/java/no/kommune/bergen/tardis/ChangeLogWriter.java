@@ -0,0 +1,16 @@
+package no.kommune.bergen.tardis;
+
+import java.io.IOException;
+
+/**
+ * Receives the changes found between two snapshots, in primary key order. The records are the json lines of the
+ * snapshot files.
+ */
+interface ChangeLogWriter {
+
+    void added(String newRecord) throws IOException;
+
+    void deleted(String oldRecord) throws IOException;
+
+    void changed(String oldRecord, String newRecord) throws IOException;
+}
@@ -0,0 +1,217 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A side index with the id, time, message and changed files of every commit, one line per commit in the order the
+ * commits were made. The files are recorded when Tardis commits, so listing the log never has to diff trees. Only the
+ * time and file offset of each entry are kept in memory.
+ */
+class CommitLog {
+
+    private final Logger LOG = LoggerFactory.getLogger(CommitLog.class);
+
+    private final File file;
+
+    private int size;
+    private int[] times = new int[1024];
+    private long[] offsets = new long[1024];
+    private long length;
+    // The last commit in the log, readable without taking the lock of the log
+    private volatile ObjectId last;
+
+    CommitLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the log from disk, and adds any commits that are missing from it.
+     */
+    synchronized void open(Repository repository) throws IOException {
+        clear();
+        if (file.exists()) load();
+        catchUp(repository);
+    }
+
+    /**
+     * Adds the commits made since the last commit in the log, walking only the history after it. The changed files
+     * of those commits are found by diffing their trees, which is only done once. The log is rebuilt if HEAD does not
+     * descend from the last commit, as when the history has been rewritten. Returns the number of commits added.
+     */
+    synchronized int catchUp(Repository repository) throws IOException {
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null || isAt(head)) return 0;
+
+        List<RevCommit> missing = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit headCommit = walk.parseCommit(head);
+            RevCommit lastCommit = null;
+            if (last != null) {
+                try {
+                    lastCommit = walk.parseCommit(last);
+                } catch (MissingObjectException e) {
+                    lastCommit = null;
+                }
+                if (lastCommit == null || !walk.isMergedInto(lastCommit, headCommit)) {
+                    LOG.warn("The commit log " + file + " does not match the history, rebuilding it");
+                    clear();
+                    new FileOutputStream(file).close();
+                    lastCommit = null;
+                }
+                walk.reset();
+            }
+
+            walk.sort(RevSort.TOPO);
+            walk.sort(RevSort.REVERSE, true);
+            walk.markStart(headCommit);
+            if (lastCommit != null) walk.markUninteresting(lastCommit);
+            for (RevCommit commit : walk) {
+                missing.add(commit);
+            }
+
+            LOG.info("Adding " + missing.size() + " commits to the commit log " + file);
+            try (DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+                df.setRepository(repository);
+                df.setDiffComparator(RawTextComparator.DEFAULT);
+                for (RevCommit commit : missing) {
+                    if (commit.getParentCount() > 0) walk.parseHeaders(commit.getParent(0));
+                    add(commit, commit.getCommitTime(), commit.getShortMessage(), getFiles(commit, df));
+                }
+            }
+        }
+        return missing.size();
+    }
+
+    /**
+     * Returns true if the last commit in the log is the given commit. Does not wait for a catch-up in progress.
+     */
+    boolean isAt(ObjectId head) {
+        ObjectId last = this.last;
+        return head == null ? last == null : head.equals(last);
+    }
+
+    synchronized void add(ObjectId commitId, int commitTime, String message, Collection<String> files) throws IOException {
+        if (commitId.equals(last)) return;
+
+        String line = commitId.name() + "\t" + commitTime + "\t" + message.replace('\t', ' ').replace('\n', ' ')
+                + "\t" + String.join(", ", files) + "\n";
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        }
+        append(commitTime, bytes.length);
+        last = commitId.copy();
+    }
+
+    /**
+     * Visits the entries made between since and until (both inclusive, and both optional), newest first, until the
+     * visitor returns false.
+     */
+    void visit(Date since, Date until, Visitor visitor) throws IOException {
+        int end;
+        long endOffset;
+        int[] times;
+        long[] offsets;
+        synchronized (this) {
+            end = size;
+            endOffset = length;
+            times = this.times;
+            offsets = this.offsets;
+        }
+
+        long sinceSeconds = since == null ? Long.MIN_VALUE : since.getTime() / 1000L;
+        long untilSeconds = until == null ? Long.MAX_VALUE : until.getTime() / 1000L;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = end - 1; i >= 0; i--) {
+                if (times[i] < sinceSeconds || times[i] > untilSeconds) continue;
+
+                long offset = offsets[i];
+                long next = i + 1 < end ? offsets[i + 1] : endOffset;
+                ByteBuffer buffer = ByteBuffer.allocate((int) (next - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException();
+                }
+
+                String[] fields = new String(buffer.array(), 0, buffer.capacity() - 1, StandardCharsets.UTF_8).split("\t", -1);
+                if (!visitor.visit(fields[0], new Date(times[i] * 1000L), fields[2], fields[3])) return;
+            }
+        }
+    }
+
+    interface Visitor {
+        /**
+         * @return false to stop visiting
+         */
+        boolean visit(String commitId, Date commitTime, String message, String files) throws IOException;
+    }
+
+    private List<String> getFiles(RevCommit commit, DiffFormatter df) throws IOException {
+        List<String> files = new ArrayList<>();
+        if (commit.getParentCount() == 0) return files;
+        for (DiffEntry diffEntry : df.scan(commit.getParent(0).getTree(), commit.getTree())) {
+            files.add(diffEntry.getChangeType() == DiffEntry.ChangeType.DELETE ? diffEntry.getOldPath() : diffEntry.getNewPath());
+        }
+        return files;
+    }
+
+    private void load() throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                line.write(b);
+                if (b != '\n') continue;
+
+                String[] fields = line.toString("UTF-8").split("\t", -1);
+                append(Integer.parseInt(fields[1]), line.size());
+                last = ObjectId.fromString(fields[0]);
+                line.reset();
+            }
+            if (line.size() > 0) {
+                LOG.warn("Ignoring an incomplete last line in the commit log " + file);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+        }
+    }
+
+    private void append(int commitTime, int lineLength) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        times[size] = commitTime;
+        offsets[size] = length;
+        length += lineLength;
+        size++;
+    }
+
+    private void clear() {
+        size = 0;
+        length = 0;
+        last = null;
+        times = new int[1024];
+        offsets = new long[1024];
+    }
+}
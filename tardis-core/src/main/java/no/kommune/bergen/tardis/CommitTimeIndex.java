@@ -0,0 +1,237 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An on-disk index from commit time to commit id, in the order the commits were made. Finding the last commit made
+ * at or before a given time is a binary search instead of a walk through the whole history.
+ *
+ * The file holds a header followed by one fixed size entry per commit: the commit time in seconds and the commit id.
+ */
+class CommitTimeIndex {
+
+    private static final int MAGIC = 0x54435449; // "TCTI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 4 + Constants.OBJECT_ID_LENGTH;
+
+    private final Logger LOG = LoggerFactory.getLogger(CommitTimeIndex.class);
+
+    private final File file;
+
+    private int size;
+    private int[] times = new int[1024];
+    private byte[] ids = new byte[1024 * Constants.OBJECT_ID_LENGTH];
+    private boolean ordered = true;
+    // The last commit in the index, readable without taking the lock of the index
+    private volatile ObjectId last;
+
+    CommitTimeIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index from disk, rebuilds it from the history if it is missing or unreadable, and catches up with
+     * HEAD if it is behind.
+     */
+    synchronized void open(Repository repository) throws IOException {
+        clear();
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOG.warn("Could not read commit index " + file + ", rebuilding it", e);
+                clear();
+            }
+        }
+        catchUp(repository);
+    }
+
+    /**
+     * Adds the commits made since the last commit in the index, walking only the history after it. The index is
+     * rebuilt if HEAD does not descend from that commit, as when the history has been rewritten. Returns the number
+     * of commits added.
+     */
+    synchronized int catchUp(Repository repository) throws IOException {
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (isAt(head)) return 0;
+        if (head == null || size == 0) {
+            rebuild(repository);
+            return size;
+        }
+
+        List<RevCommit> missing = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit last;
+            try {
+                last = walk.parseCommit(getId(size - 1));
+            } catch (MissingObjectException e) {
+                last = null;
+            }
+            RevCommit headCommit = walk.parseCommit(head);
+            if (last == null || !walk.isMergedInto(last, headCommit)) {
+                LOG.warn("HEAD does not descend from the last commit in " + file + ", rebuilding it");
+                rebuild(repository);
+                return size;
+            }
+
+            walk.reset();
+            walk.sort(RevSort.TOPO);
+            walk.sort(RevSort.REVERSE, true);
+            walk.markStart(headCommit);
+            walk.markUninteresting(last);
+            for (RevCommit commit : walk) {
+                missing.add(commit);
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            for (RevCommit commit : missing) {
+                writeEntry(out, commit, commit.getCommitTime());
+                append(commit, commit.getCommitTime());
+            }
+        }
+        return missing.size();
+    }
+
+    /**
+     * Returns true if the last commit in the index is the given commit. Does not wait for a catch-up in progress.
+     */
+    boolean isAt(ObjectId head) {
+        ObjectId last = this.last;
+        return head == null ? last == null : head.equals(last);
+    }
+
+    synchronized void add(ObjectId commitId, int commitTime) throws IOException {
+        if (isAt(commitId)) return;
+        if (!file.exists()) writeHeader(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            writeEntry(out, commitId, commitTime);
+        }
+        append(commitId, commitTime);
+    }
+
+    /**
+     * Returns the last commit made at or before the given time, or null if there is none.
+     */
+    synchronized ObjectId findCommitBefore(long atSeconds) {
+        int position = ordered ? search(atSeconds) : scan(atSeconds);
+        return position < 0 ? null : getId(position);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private int search(long atSeconds) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= atSeconds) low = middle + 1;
+            else high = middle - 1;
+        }
+        return high;
+    }
+
+    // The clock has gone backwards at some point, so the times are not sorted
+    private int scan(long atSeconds) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (times[i] <= atSeconds) return i;
+        }
+        return -1;
+    }
+
+    private void rebuild(Repository repository) throws IOException {
+        LOG.info("Building commit index " + file);
+        clear();
+
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head != null) {
+            try (RevWalk walk = new RevWalk(repository)) {
+                walk.sort(RevSort.TOPO);
+                walk.sort(RevSort.REVERSE, true);
+                walk.markStart(walk.parseCommit(head));
+                for (RevCommit commit : walk) {
+                    append(commit, commit.getCommitTime());
+                }
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        writeHeader(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp, true)))) {
+            for (int i = 0; i < size; i++) {
+                writeEntry(out, getId(i), times[i]);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Commit index " + file + " contains " + size + " commits");
+    }
+
+    private void load() throws IOException {
+        if ((file.length() - HEADER_SIZE) % ENTRY_SIZE != 0) throw new IOException("Truncated file");
+        long entries = (file.length() - HEADER_SIZE) / ENTRY_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown file format");
+
+            byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+            for (long i = 0; i < entries; i++) {
+                int time = in.readInt();
+                in.readFully(id);
+                append(ObjectId.fromRaw(id), time);
+            }
+        }
+    }
+
+    private void writeHeader(File target) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(target))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, ObjectId commitId, int commitTime) throws IOException {
+        byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        commitId.copyRawTo(id, 0);
+        out.writeInt(commitTime);
+        out.write(id);
+    }
+
+    private void append(ObjectId commitId, int commitTime) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            ids = Arrays.copyOf(ids, size * 2 * Constants.OBJECT_ID_LENGTH);
+        }
+        if (size > 0 && commitTime < times[size - 1]) ordered = false;
+        times[size] = commitTime;
+        commitId.copyRawTo(ids, size * Constants.OBJECT_ID_LENGTH);
+        size++;
+        last = commitId.copy();
+    }
+
+    private ObjectId getId(int position) {
+        return ObjectId.fromRaw(ids, position * Constants.OBJECT_ID_LENGTH);
+    }
+
+    private void clear() {
+        size = 0;
+        ordered = true;
+        last = null;
+    }
+}
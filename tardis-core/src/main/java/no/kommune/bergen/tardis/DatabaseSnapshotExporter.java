@@ -1,11 +1,34 @@
 package no.kommune.bergen.tardis;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -17,8 +40,17 @@ class DatabaseSnapshotExporter {
     @Autowired
     private TardisConfiguration configuration;
 
+    @Autowired
+    private TardisMetrics metrics = new TardisMetrics();
+
     private static Logger log = getLogger(DatabaseSnapshotExporter.class);
 
+    private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+    private final Map<String, Integer> incrementalExports = new ConcurrentHashMap<>();
+    // Partitions mostly wait for the database. The exporting thread always takes part, so a full pool only slows down
+    private final ExecutorService partitionExecutor = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(),
+            new CustomizableThreadFactory("tardis-partition-"));
+
     boolean TEST;
 
     public void exportAll() {
@@ -29,37 +61,332 @@ class DatabaseSnapshotExporter {
         }
     }
 
-    public void exportDataSource(String dataSource) {
+    public ExportReport exportDataSource(String dataSource) {
+        List<Table> tables = configuration.getTables(dataSource);
+        ExportReport report = new ExportReport(dataSource);
         try {
-            for (Table table : configuration.getTables(dataSource)) {
-                export(table);
-                log.debug("Exporting table: {" + table.getName() + ", " + table.getQuery() + "}");
+            if (getExportThreads(dataSource) > 1 && tables.size() > 1) {
+                exportInParallel(dataSource, tables, report);
+            } else {
+                for (Table table : tables) {
+                    export(table, report);
+                    log.debug("Exporting table: {" + table.getName() + ", " + table.getQuery() + "}");
+                }
             }
         } catch (Exception e) {
             log.error("Caught exception while exporting dataSource " + dataSource, e);
         } finally {
-            snapshotStore.commit(dataSource);
+            if (report.getWritten() > 0) {
+                snapshotStore.commit(dataSource, getFilenames(tables));
+            }
         }
+        return report;
     }
 
-    public void export(Table table) {
-        DatabaseTableSnapshotExporter exporter = createExporter();
+    private List<String> getFilenames(List<Table> tables) {
+        List<String> filenames = new ArrayList<>();
+        for (Table table : tables) {
+            filenames.add(table.getFilename());
+            if (table.getChangeTrackingColumn() != null) filenames.add(table.getHighWaterMarkFilename());
+        }
+        return filenames;
+    }
+
+    private void exportInParallel(String dataSource, List<Table> tables, ExportReport report) throws InterruptedException {
+        ExecutorService executor = getExecutor(dataSource);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Table table : tables) {
+            futures.add(executor.submit(() -> {
+                export(table, report);
+                log.debug("Exporting table: {" + table.getName() + ", " + table.getQuery() + "}");
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Caught exception while exporting a table in dataSource " + dataSource, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+    }
+
+    private ExecutorService getExecutor(String dataSource) {
+        return executors.computeIfAbsent(dataSource, name -> Executors.newFixedThreadPool(getExportThreads(name),
+                new CustomizableThreadFactory("tardis-export-" + name + "-")));
+    }
+
+    /**
+     * Resizes the export pools of data sources whose exportThreads changed, and shuts down the pools of data sources
+     * that are gone. Running exports are left to finish.
+     */
+    @EventListener
+    public void onTableRegistryReloaded(TableRegistryReloadedEvent event) {
+        for (Map.Entry<String, ExecutorService> entry : executors.entrySet()) {
+            if (event.getRegistry().getDataSourceConfig(entry.getKey()) == null) {
+                executors.remove(entry.getKey());
+                entry.getValue().shutdown();
+                continue;
+            }
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) entry.getValue();
+            int threads = getExportThreads(entry.getKey());
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else if (threads < executor.getMaximumPoolSize()) {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    private int getExportThreads(String dataSource) {
+        TardisConfiguration.DataSourceConfig config = configuration.getDataSourceConfig(dataSource);
+        return config == null ? 1 : config.getExportThreads();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executors.values().forEach(ExecutorService::shutdownNow);
+        partitionExecutor.shutdownNow();
+    }
+
+    public void export(Table table, ExportReport report) {
+        DatabaseTableSnapshotExporter exporter = createExporter(table);
         Connection conn = null;
+        long start = System.nanoTime();
+        String result = "failed";
         try {
-            conn = getConnection(table.getDataSourceName());
+            conn = getConnection(table);
             exporter.setConn(conn);
-            exporter.setQuery(table.getQuery());
-            exporter.setFilename(table.getFilename());
-            exporter.export();
+            boolean written;
+            if (table.getChangeTrackingColumn() != null) validateChangeTracking(table, conn);
+            if (table.getPartitionColumn() != null) {
+                written = exportPartitions(table, exporter, conn);
+            } else if (table.getChangeTrackingColumn() != null) {
+                written = exportChanges(table, exporter, conn);
+            } else {
+                written = exporter.export();
+            }
+            if (written) {
+                report.tableWritten();
+                result = "written";
+            } else {
+                report.tableUnchanged();
+                result = "unchanged";
+            }
             conn.commit();
         } catch (Exception e) {
             log.error(e.getMessage(), e);
+            report.tableFailed();
+            result = "failed";
             rollback(conn);
         } finally {
             close(conn);
+            metrics.timer(TardisMetrics.EXPORT, TardisMetrics.tags(table.getDataSourceName(), table.getName()).and("result", result))
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Exports the partitions of the table at the same time, each on its own connection, and puts the snapshot together
+     * from the partitions in key order. No more partitions run at once than the pool of the data source can serve
+     * next to the other exports of the data source, and this thread exports partitions on the connection it has.
+     */
+    private boolean exportPartitions(Table table, DatabaseTableSnapshotExporter exporter, Connection conn) throws Exception {
+        List<TablePartitioner.Partition> partitions = new TablePartitioner().getPartitions(table, conn);
+        if (partitions.size() == 1) {
+            return exporter.export();
+        }
+
+        List<File> partitionFiles = new ArrayList<>();
+        for (int i = 0; i < partitions.size(); i++) {
+            partitionFiles.add(new File(snapshotStore.getTempDirectory(), table.getFilename() + ".part" + i + ".tmp"));
+        }
+        int parallelism = Math.min(partitions.size(), configuration.getConnectionsPerExport(table.getDataSourceName()));
+        AtomicInteger nextPartition = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 1; i < parallelism; i++) {
+                futures.add(partitionExecutor.submit(() -> {
+                    exportPartitions(table, partitions, partitionFiles, nextPartition, null);
+                    return null;
+                }));
+            }
+            try {
+                exportPartitions(table, partitions, partitionFiles, nextPartition, conn);
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to export a partition of " + table.getFilename(), e);
+            }
+            log.debug("Exported " + partitions.size() + " partitions of " + table.getFilename() + ", " + parallelism + " at a time");
+            return exporter.exportPartitions(partitionFiles);
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+            partitionFiles.forEach(File::delete);
+        }
+    }
+
+    /**
+     * Exports partitions until there are none left, on conn, or on a connection of its own if conn is null.
+     */
+    private void exportPartitions(Table table, List<TablePartitioner.Partition> partitions, List<File> partitionFiles,
+                                  AtomicInteger nextPartition, Connection conn) throws Exception {
+        int i = nextPartition.getAndIncrement();
+        if (i >= partitions.size()) return;
+        boolean ownConnection = conn == null;
+        try {
+            if (ownConnection) conn = getConnection(table);
+            for (; i < partitions.size(); i = nextPartition.getAndIncrement()) {
+                exportPartition(table, partitions.get(i), partitionFiles.get(i), conn);
+            }
+            if (ownConnection) conn.commit();
+        } catch (Exception e) {
+            if (ownConnection) rollback(conn);
+            throw e;
+        } finally {
+            if (ownConnection) close(conn);
         }
     }
 
+    /**
+     * Exports the rows changed since the high water mark of the previous export, and merges them into the previous
+     * snapshot. Falls back to a full export when there is no previous export or the merge fails, and does one every
+     * fullExportInterval exports to pick up rows changed without updating the change tracking column.
+     */
+    private boolean exportChanges(Table table, DatabaseTableSnapshotExporter exporter, Connection conn) throws Exception {
+        HighWaterMark highWaterMark = readHighWaterMark(table);
+        ObjectId previousSnapshot = snapshotStore.getHeadBlobId(table.getFilename());
+        exporter.setChangeTrackingColumn(table.getChangeTrackingColumn());
+
+        if (highWaterMark != null && !ObjectId.zeroId().equals(previousSnapshot) && !isFullExportDue(table)) {
+            File changes = new File(snapshotStore.getTempDirectory(), table.getFilename() + ".changes.tmp");
+            File keys = new File(snapshotStore.getTempDirectory(), table.getFilename() + ".keys.tmp");
+            try {
+                // The keys are read first and decide which rows exist. A row inserted after that is among the
+                // changes but not the keys, and is left for the next export.
+                DatabaseTableSnapshotExporter keyExporter = createExporter(table);
+                keyExporter.setConn(conn);
+                keyExporter.setQuery(getKeyQuery(table));
+                keyExporter.exportRows(keys);
+
+                exporter.setQuery(table.getQuery().replace(Table.PARTITION_PLACEHOLDER, "1 = 1")
+                        .replace(Table.CHANGES_PLACEHOLDER, "(" + table.getChangeTrackingColumn() + " >= ?)"));
+                exporter.setParameters(Collections.singletonList(highWaterMark.getValue()));
+                exporter.exportRows(changes);
+
+                boolean written;
+                try (InputStream previous = snapshotStore.openBlob(previousSnapshot)) {
+                    written = exporter.exportMerged(previous, changes, keys, table.getPrimaryKeys());
+                }
+                if (written) {
+                    // The high water mark stays put when rows were dropped, so that they are read again next time
+                    writeHighWaterMark(table, exporter.getDroppedChanges() > 0
+                            ? highWaterMark : HighWaterMark.max(highWaterMark, exporter.getHighWaterMark()));
+                }
+                incrementalExports.merge(table.getFilename(), 1, Integer::sum);
+                return written;
+            } catch (IllegalStateException e) {
+                log.warn("Could not merge the changes to " + table.getFilename() + ", exporting all rows. " + e.getMessage());
+            } finally {
+                changes.delete();
+                keys.delete();
+            }
+            exporter = createExporter(table);
+            exporter.setConn(conn);
+            exporter.setChangeTrackingColumn(table.getChangeTrackingColumn());
+        }
+
+        boolean written = exporter.export();
+        incrementalExports.remove(table.getFilename());
+        if (written || highWaterMark == null) {
+            writeHighWaterMark(table, exporter.getHighWaterMark());
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isFullExportDue(Table table) {
+        return table.getFullExportInterval() > 0
+                && incrementalExports.getOrDefault(table.getFilename(), 0) >= table.getFullExportInterval();
+    }
+
+    private void validateChangeTracking(Table table, Connection conn) throws SQLException {
+        if (table.getPartitionColumn() != null) {
+            throw new IllegalStateException("The table " + table.getFilename() + " cannot have both a partition column and a change tracking column");
+        }
+        if (!table.getQuery().contains(Table.CHANGES_PLACEHOLDER)) {
+            throw new IllegalStateException("The query of " + table.getFilename() + " must contain " + Table.CHANGES_PLACEHOLDER
+                    + " in its where clause to be exported incrementally");
+        }
+        // SQL Server does not allow order by in a sub query without top, so the default key query cannot be used
+        if (table.getKeyQuery() == null && conn.getMetaData().getDatabaseProductName().startsWith("Microsoft SQL Server")) {
+            throw new IllegalStateException("The table " + table.getFilename() + " must have a keyQuery to be exported incrementally from SQL Server");
+        }
+    }
+
+    private String getKeyQuery(Table table) {
+        if (table.getKeyQuery() != null) return table.getKeyQuery();
+        String keys = String.join(", ", table.getPrimaryKeys());
+        return "select " + keys + " from (" + table.getFullQuery() + ") tardis_keys order by " + keys;
+    }
+
+    private HighWaterMark readHighWaterMark(Table table) throws IOException {
+        ObjectId blobId = snapshotStore.getHeadBlobId(table.getHighWaterMarkFilename());
+        if (ObjectId.zeroId().equals(blobId)) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(snapshotStore.openBlob(blobId), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            return line == null || line.isEmpty() ? null : HighWaterMark.parse(line);
+        }
+    }
+
+    private void writeHighWaterMark(Table table, HighWaterMark highWaterMark) throws IOException {
+        File file = new File(snapshotStore.getTempDirectory(), table.getHighWaterMarkFilename() + ".tmp");
+        Files.write(file.toPath(), ((highWaterMark == null ? "" : highWaterMark.toString()) + "\n").getBytes(StandardCharsets.UTF_8));
+        snapshotStore.addSnapshot(table.getHighWaterMarkFilename(), file);
+    }
+
+    private void exportPartition(Table table, TablePartitioner.Partition partition, File partitionFile, Connection conn) throws Exception {
+        DatabaseTableSnapshotExporter exporter = createExporter(table);
+        exporter.setQuery(partition.getQuery());
+        exporter.setParameters(partition.getParameters());
+        exporter.setConn(conn);
+        exporter.exportRows(partitionFile);
+    }
+
+    private DatabaseTableSnapshotExporter createExporter(Table table) {
+        TardisConfiguration.DataSourceConfig config = configuration.getDataSourceConfig(table.getDataSourceName());
+        DatabaseTableSnapshotExporter exporter = createExporter();
+        exporter.setQuery(table.getFullQuery());
+        exporter.setFetchSize(table.getFetchSize() != null ? table.getFetchSize() : config == null ? 0 : config.getFetchSize());
+        exporter.setQueryTimeout(table.getQueryTimeout() != null ? table.getQueryTimeout() : config == null ? 0 : config.getQueryTimeout());
+        exporter.setFilename(table.getFilename());
+        exporter.setMetrics(metrics, TardisMetrics.tags(table.getDataSourceName(), table.getName()));
+        return exporter;
+    }
+
+    private Connection getConnection(Table table) throws SQLException {
+        TardisConfiguration.DataSourceConfig config = configuration.getDataSourceConfig(table.getDataSourceName());
+        Connection conn = getConnection(table.getDataSourceName());
+        if (table.getReadOnly() != null ? table.getReadOnly() : config != null && config.isReadOnly()) {
+            conn.setReadOnly(true);
+        }
+        return conn;
+    }
+
     private void rollback(Connection conn) {
         if (null == conn) return;
         try {
@@ -93,6 +420,10 @@ class DatabaseSnapshotExporter {
         this.configuration = configuration;
     }
 
+    public void setMetrics(TardisMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void setSnapshotStore(SnapshotStore snapshotStore) {
         this.snapshotStore = snapshotStore;
     }
@@ -1,14 +1,27 @@
 package no.kommune.bergen.tardis;
 
+import io.micrometer.core.instrument.Tags;
 import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
 import java.sql.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -21,84 +34,300 @@ public class DatabaseTableSnapshotExporter {
     private JsonGenerator g;
     private String filename;
     private String query;
+    private List<Object> parameters = Collections.emptyList();
+    private int fetchSize;
+    private String changeTrackingColumn;
+    private HighWaterMark highWaterMark;
+    private int droppedChanges;
+    private int queryTimeout;
 
     private DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
     private String workingDirectory;
     private SnapshotStore snapshotStore;
+    private TardisMetrics metrics = new TardisMetrics();
+    private Tags tags = Tags.empty();
 
     public DatabaseTableSnapshotExporter() {
     }
 
-    public void export() throws Exception {
+    /**
+     * Exports the query to the snapshot store. The rows are written to a temporary file first, and hashed on the way.
+     * When they are the same as the committed snapshot, the snapshot is left alone and nothing is added.
+     *
+     * @return false if the snapshot was unchanged and not written
+     */
+    public boolean export() throws Exception {
+        return writeSnapshot(this::writeRows);
+    }
+
+    /**
+     * Exports a snapshot put together from partitions written by exportPartition, in the given order.
+     */
+    boolean exportPartitions(List<File> partitionFiles) throws Exception {
+        return writeSnapshot(out -> {
+            boolean empty = true;
+            for (File partitionFile : partitionFiles) {
+                if (partitionFile.length() == 0) continue;
+                if (!empty) out.write('\n');
+                Files.copy(partitionFile.toPath(), out);
+                empty = false;
+            }
+        });
+    }
+
+    /**
+     * Exports a snapshot merged from the previous snapshot and files of changed rows and keys written by exportRows.
+     * The number of changed rows that were left out is returned by getDroppedChanges afterwards.
+     */
+    boolean exportMerged(InputStream previousSnapshot, File changes, File keys, List<String> primaryKeys) throws Exception {
+        IncrementalSnapshotMerge merge = new IncrementalSnapshotMerge(primaryKeys);
+        return writeSnapshot(out -> {
+            try (InputStream changesIn = new FileInputStream(changes); InputStream keysIn = new FileInputStream(keys)) {
+                merge.merge(previousSnapshot, changesIn, keysIn, out);
+            } finally {
+                droppedChanges = merge.getDroppedChanges();
+            }
+        });
+    }
+
+    /**
+     * Writes the rows of the query to a file, without the newline that ends a snapshot.
+     */
+    void exportRows(File file) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            writeRows(out);
+        }
+    }
+
+    private boolean writeSnapshot(SnapshotWriter snapshotWriter) throws Exception {
+        File file = new File(workingDirectory + File.separator + filename);
+        File tmpFile = new File(snapshotStore.getTempDirectory(), filename + ".tmp");
+        ObjectId headBlobId = snapshotStore.getHeadBlobId(filename);
+        long headBlobSize = ObjectId.zeroId().equals(headBlobId) ? -1 : snapshotStore.getBlobSize(headBlobId);
+
+        BlobHashingOutputStream out = new BlobHashingOutputStream(new FileOutputStream(tmpFile), headBlobSize);
+        try {
+            try {
+                snapshotWriter.write(out);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            tmpFile.delete();
+            throw e;
+        }
+
+        // The length check catches a snapshot file left behind by an export that failed before it was committed
+        if (out.matches(headBlobId) && (snapshotStore.isBare() || file.length() == headBlobSize)) {
+            log.debug("Snapshot " + filename + " is unchanged");
+            Files.delete(tmpFile.toPath());
+            return false;
+        }
+
+        metrics.counter(TardisMetrics.EXPORT_BYTES, "bytes", tags).increment(tmpFile.length());
+        long start = System.nanoTime();
+        snapshotStore.addSnapshot(filename, tmpFile);
+        metrics.timer(TardisMetrics.STORE_ADD, tags).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private void writeRows(OutputStream out) throws Exception {
+        long start = System.nanoTime();
+        long rows = 0;
         try (
-                PreparedStatement statement = conn.prepareStatement(query);
+                PreparedStatement statement = prepareStatement();
                 ResultSet resultSet = statement.executeQuery()
         ) {
+            metrics.timer(TardisMetrics.EXPORT_QUERY, tags).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
             metaData = resultSet.getMetaData();
+            ColumnWriter[] columnWriters = createColumnWriters();
+            int changeTrackingColumnIndex = findChangeTrackingColumn();
             JsonFactory f = new JsonFactory();
-            g = f.createJsonGenerator(new File(workingDirectory + File.separator + filename), JsonEncoding.UTF8);
+            f.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            g = f.createJsonGenerator(out, JsonEncoding.UTF8);
             g.setPrettyPrinter(new DiffablePrettyPrinter());
-            while (resultSet.next()) {
-                toJson(resultSet);
+            try {
+                while (resultSet.next()) {
+                    rows++;
+                    toJson(resultSet, columnWriters);
+                    if (changeTrackingColumnIndex > 0) {
+                        highWaterMark = HighWaterMark.max(highWaterMark, HighWaterMark.of(resultSet.getObject(changeTrackingColumnIndex)));
+                    }
+                }
+            } finally {
+                g.close();
             }
-            g.writeRaw("\n");
-            g.close();
-            snapshotStore.addSnapshot(filename);
         } catch (SQLException e) {
             throw new RuntimeException("Exception while executing query: " + query, e);
+        } finally {
+            recordRows(rows, System.nanoTime() - start);
         }
     }
 
-    private void toJson(ResultSet row) throws Exception {
-        g.writeStartObject();
+    private void recordRows(long rows, long nanos) {
+        metrics.counter(TardisMetrics.EXPORT_ROWS, "rows", tags).increment(rows);
+        if (rows > 0 && nanos > 0) {
+            metrics.summary(TardisMetrics.EXPORT_THROUGHPUT, "rows/s", tags).record(rows * 1e9 / nanos);
+        }
+    }
+
+    private interface SnapshotWriter {
+        void write(OutputStream out) throws Exception;
+    }
+
+    private int findChangeTrackingColumn() throws SQLException {
+        if (changeTrackingColumn == null) return 0;
         for (int i = 1; i <= metaData.getColumnCount(); i++) {
-            String columnName = metaData.getColumnName(i);
+            if (metaData.getColumnName(i).equalsIgnoreCase(changeTrackingColumn)) return i;
+        }
+        throw new IllegalStateException("The change tracking column " + changeTrackingColumn + " is missing from the query of " + filename);
+    }
 
-            if (row.getObject(i) == null) {
-                g.writeNullField(columnName);
-                continue;
+    /**
+     * A forward only, read only cursor with a fetch size lets drivers stream the result set instead of buffering it.
+     */
+    private PreparedStatement prepareStatement() throws SQLException {
+        PreparedStatement statement = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            if (fetchSize != 0) statement.setFetchSize(fetchSize);
+            if (queryTimeout > 0) statement.setQueryTimeout(queryTimeout);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
             }
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+        return statement;
+    }
 
-            int columnType = metaData.getColumnType(i);
-            switch (columnType) {
-                case Types.VARCHAR:
-                case Types.NVARCHAR:
-                case Types.CHAR:
-                    g.writeStringField(columnName, row.getString(i));
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                case Types.NULL:
-                    g.writeNullField(columnName);
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                case Types.DECIMAL:
-                case Types.NUMERIC:
-                    g.writeNumberField(columnName, row.getBigDecimal(i));
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                case Types.INTEGER:
-                    g.writeNumberField(columnName, row.getInt(i));
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                case Types.DATE:
-                    g.writeStringField(columnName, df.format(row.getDate(i)));
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                case Types.TIMESTAMP:
-                    g.writeStringField(columnName, df.format(row.getTimestamp(i)));
-                    log.debug("Exporting: " + columnName + " - " + row.getString(i));
-                    break;
-                default:
-                    throw new RuntimeException("Got unexpected columnType: " + columnType + " for column: " + columnName + ". The value was " + row.getObject(i));
-            }
+    private void toJson(ResultSet row, ColumnWriter[] columnWriters) throws Exception {
+        g.writeStartObject();
+        for (ColumnWriter columnWriter : columnWriters) {
+            columnWriter.write(row);
         }
         g.writeEndObject();
     }
 
+    /**
+     * Looks up the name and type of every column once, and returns a writer per column that reads the value with a
+     * single getter.
+     */
+    private ColumnWriter[] createColumnWriters() throws SQLException {
+        ColumnWriter[] columnWriters = new ColumnWriter[metaData.getColumnCount()];
+        for (int i = 1; i <= columnWriters.length; i++) {
+            columnWriters[i - 1] = createColumnWriter(i, new SerializedString(metaData.getColumnName(i)), metaData.getColumnType(i));
+        }
+        return columnWriters;
+    }
+
+    private ColumnWriter createColumnWriter(int i, SerializedString columnName, int columnType) {
+        switch (columnType) {
+            case Types.VARCHAR:
+            case Types.NVARCHAR:
+            case Types.CHAR:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    String value = row.getString(i);
+                    if (value == null) g.writeNull();
+                    else g.writeString(value);
+                };
+            case Types.NULL:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    g.writeNull();
+                };
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    BigDecimal value = row.getBigDecimal(i);
+                    if (value == null) g.writeNull();
+                    else g.writeNumber(value);
+                };
+            case Types.INTEGER:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    int value = row.getInt(i);
+                    if (row.wasNull()) g.writeNull();
+                    else g.writeNumber(value);
+                };
+            case Types.DATE:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    Date value = row.getDate(i);
+                    if (value == null) g.writeNull();
+                    else g.writeString(df.format(value));
+                };
+            case Types.TIMESTAMP:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    Timestamp value = row.getTimestamp(i);
+                    if (value == null) g.writeNull();
+                    else g.writeString(df.format(value));
+                };
+            default:
+                return row -> {
+                    g.writeFieldName(columnName);
+                    Object value = row.getObject(i);
+                    if (value != null) {
+                        throw new RuntimeException("Got unexpected columnType: " + columnType + " for column: " + columnName + ". The value was " + value);
+                    }
+                    g.writeNull();
+                };
+        }
+    }
+
+    private interface ColumnWriter {
+        void write(ResultSet row) throws Exception;
+    }
+
     public void setQuery(String query) {
         this.query = query;
     }
 
+    /**
+     * Makes the export keep track of the highest value of the column, see getHighWaterMark.
+     */
+    public void setChangeTrackingColumn(String changeTrackingColumn) {
+        this.changeTrackingColumn = changeTrackingColumn;
+    }
+
+    /**
+     * Returns the highest value of the change tracking column in the rows exported so far, or null if none.
+     */
+    HighWaterMark getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the number of changed rows exportMerged left out because their keys were not among the keys.
+     */
+    int getDroppedChanges() {
+        return droppedChanges;
+    }
+
+    public void setParameters(List<Object> parameters) {
+        this.parameters = parameters;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Records the query latency, rows, throughput and bytes of the export in metrics, tagged with tags.
+     */
+    public void setMetrics(TardisMetrics metrics, Tags tags) {
+        this.metrics = metrics;
+        this.tags = tags;
+    }
+
     public void setFilename(String filename) {
         this.filename = filename;
     }
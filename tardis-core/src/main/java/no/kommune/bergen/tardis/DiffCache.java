@@ -0,0 +1,283 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache of computed change logs. The change log between two blobs never changes, so entries are
+ * keyed by the blob ids, the primary key columns and the output format, and never go stale.
+ *
+ * Entries are kept on the heap, and optionally in a directory on disk. Entries evicted from the heap stay on disk
+ * until they are evicted from there as well.
+ */
+@Component
+class DiffCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiffCache.class);
+
+    private long maxHeapBytes;
+    private long maxDiskBytes;
+    private int maxEntryBytes;
+    private File directory;
+
+    private final LinkedHashMap<Key, byte[]> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+    private long diskBytes;
+
+    private final AtomicLong heapHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong heapEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    public DiffCache() {
+        setConfig(new TardisConfiguration.DiffCacheConfig());
+    }
+
+    @Autowired
+    public void setConfiguration(TardisConfiguration configuration) {
+        setConfig(configuration.getDiffCache());
+    }
+
+    synchronized void setConfig(TardisConfiguration.DiffCacheConfig config) {
+        maxHeapBytes = config.getMaxHeapBytes();
+        maxDiskBytes = config.getMaxDiskBytes();
+        maxEntryBytes = config.getMaxEntryBytes();
+        directory = config.getDirectory() == null ? null : new File(config.getDirectory());
+
+        heap.clear();
+        heapBytes = 0;
+        disk.clear();
+        diskBytes = 0;
+        if (directory != null) loadDirectory();
+    }
+
+    /**
+     * Returns the cached change log, or null if it is not cached.
+     */
+    byte[] get(Key key) {
+        synchronized (this) {
+            byte[] value = heap.get(key);
+            if (value != null) {
+                heapHits.incrementAndGet();
+                return value;
+            }
+            if (!disk.containsKey(key.getFilename())) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        try {
+            byte[] value = Files.readAllBytes(new File(directory, key.getFilename()).toPath());
+            diskHits.incrementAndGet();
+            synchronized (this) {
+                putOnHeap(key, value);
+            }
+            return value;
+        } catch (IOException e) {
+            LOG.warn("Could not read cached change log " + key.getFilename(), e);
+            synchronized (this) {
+                removeFromDisk(key.getFilename());
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    void put(Key key, byte[] value) {
+        String filename = key.getFilename();
+        File directory;
+        synchronized (this) {
+            if (value.length > maxEntryBytes) return;
+            putOnHeap(key, value);
+            directory = this.directory;
+            if (directory == null || disk.containsKey(filename)) return;
+        }
+
+        // Written outside the lock, so that a slow disk does not hold up the heap. The entry is published afterwards
+        File file = new File(directory, filename);
+        try {
+            File tmp = File.createTempFile(filename + ".", ".tmp", directory);
+            try {
+                Files.write(tmp.toPath(), value);
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not write cached change log " + file, e);
+            return;
+        }
+        synchronized (this) {
+            if (directory.equals(this.directory)) putOnDisk(filename, value.length);
+        }
+    }
+
+    /**
+     * Returns a stream that writes through to out, and caches what was written when it is completed. Nothing is
+     * cached if the stream is closed without being completed, as when the diff failed half way, or if more than the
+     * maximum entry size is written.
+     */
+    Capture capture(Key key, OutputStream out) {
+        return new Capture(key, out);
+    }
+
+    class Capture extends FilterOutputStream {
+        private final Key key;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        private Capture(Key key, OutputStream out) {
+            super(out);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (captured == null) return;
+            if (captured.size() + len > maxEntryBytes) captured = null;
+            else captured.write(b, off, len);
+        }
+
+        /**
+         * Caches what was written. Call it when the whole change log has been written.
+         */
+        void complete() {
+            if (captured != null) put(key, captured.toByteArray());
+            captured = null;
+        }
+    }
+
+    synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("heapHits", heapHits.get());
+        statistics.put("diskHits", diskHits.get());
+        statistics.put("misses", misses.get());
+        long requests = heapHits.get() + diskHits.get() + misses.get();
+        statistics.put("hitRate", requests == 0 ? 0.0 : (heapHits.get() + diskHits.get()) / (double) requests);
+        statistics.put("heapEvictions", heapEvictions.get());
+        statistics.put("diskEvictions", diskEvictions.get());
+        statistics.put("heapEntries", heap.size());
+        statistics.put("heapBytes", heapBytes);
+        statistics.put("diskEntries", disk.size());
+        statistics.put("diskBytes", diskBytes);
+        return statistics;
+    }
+
+    private void putOnHeap(Key key, byte[] value) {
+        if (maxHeapBytes <= 0) return;
+        byte[] previous = heap.put(key, value);
+        if (previous != null) heapBytes -= previous.length;
+        heapBytes += value.length;
+
+        Iterator<byte[]> eldest = heap.values().iterator();
+        while (heapBytes > maxHeapBytes && eldest.hasNext()) {
+            heapBytes -= eldest.next().length;
+            eldest.remove();
+            heapEvictions.incrementAndGet();
+        }
+    }
+
+    private void putOnDisk(String filename, long length) {
+        if (disk.containsKey(filename)) return;
+        disk.put(filename, length);
+        diskBytes += length;
+
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.getValue();
+            new File(directory, entry.getKey()).delete();
+            diskEvictions.incrementAndGet();
+        }
+    }
+
+    private void removeFromDisk(String filename) {
+        Long size = disk.remove(filename);
+        if (size != null) diskBytes -= size;
+        new File(directory, filename).delete();
+    }
+
+    private void loadDirectory() {
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            disk.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+        LOG.info("Found " + disk.size() + " cached change logs in " + directory);
+    }
+
+    static class Key {
+        private final ObjectId fromBlob;
+        private final ObjectId toBlob;
+        private final List<String> primaryKeyColumns;
+        private final ChangeLogFormat format;
+
+        Key(ObjectId fromBlob, ObjectId toBlob, Collection<String> primaryKeyColumns, ChangeLogFormat format) {
+            this.fromBlob = fromBlob.copy();
+            this.toBlob = toBlob.copy();
+            this.primaryKeyColumns = new ArrayList<>(primaryKeyColumns);
+            this.format = format;
+        }
+
+        /**
+         * The name of the file this entry is stored in on disk.
+         */
+        String getFilename() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update(String.join(",", primaryKeyColumns).getBytes(StandardCharsets.UTF_8));
+                String keys = ObjectId.fromRaw(digest.digest()).name().substring(0, 8);
+                return fromBlob.name() + "-" + toBlob.name() + "-" + keys + "." + format.name().toLowerCase();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return fromBlob.equals(key.fromBlob) && toBlob.equals(key.toBlob)
+                    && primaryKeyColumns.equals(key.primaryKeyColumns) && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fromBlob, toBlob, primaryKeyColumns, format);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package no.kommune.bergen.tardis;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Exposes the hit rate, evictions and size of the change log cache as the actuator endpoint diffcache.
+ */
+@Component
+@Endpoint(id = "diffcache")
+public class DiffCacheEndpoint {
+
+    @Autowired
+    private DiffCache diffCache;
+
+    @ReadOperation
+    public Map<String, Object> statistics() {
+        return diffCache.getStatistics();
+    }
+}
@@ -0,0 +1,51 @@
+package no.kommune.bergen.tardis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts what happened to the tables of a data source during one export.
+ */
+public class ExportReport {
+
+    private final String dataSourceName;
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public ExportReport(String dataSourceName) {
+        this.dataSourceName = dataSourceName;
+    }
+
+    void tableWritten() {
+        written.incrementAndGet();
+    }
+
+    void tableUnchanged() {
+        unchanged.incrementAndGet();
+    }
+
+    void tableFailed() {
+        failed.incrementAndGet();
+    }
+
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+    public int getWritten() {
+        return written.get();
+    }
+
+    public int getUnchanged() {
+        return unchanged.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return dataSourceName + ": " + getWritten() + " written, " + getUnchanged() + " unchanged, " + getFailed() + " failed";
+    }
+}
@@ -0,0 +1,98 @@
+package no.kommune.bergen.tardis;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+
+/**
+ * The highest value of the change tracking column of a table seen in an export. It is committed as a one line file
+ * next to the snapshot, with the type of the value first so that it is bound with the same type the next time.
+ */
+class HighWaterMark {
+
+    private enum Type { NUMBER, TIMESTAMP, DATE, STRING, BINARY }
+
+    private final Type type;
+    private final Object value;
+
+    private HighWaterMark(Type type, Object value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    /**
+     * Returns the high water mark of a value read with ResultSet.getObject, or null for a null value.
+     */
+    static HighWaterMark of(Object value) {
+        if (value == null) return null;
+        if (value instanceof BigDecimal) return new HighWaterMark(Type.NUMBER, value);
+        if (value instanceof Number) return new HighWaterMark(Type.NUMBER, new BigDecimal(value.toString()));
+        if (value instanceof Timestamp) return new HighWaterMark(Type.TIMESTAMP, value);
+        if (value instanceof java.sql.Date) return new HighWaterMark(Type.DATE, value);
+        if (value instanceof LocalDateTime) return new HighWaterMark(Type.TIMESTAMP, Timestamp.valueOf((LocalDateTime) value));
+        if (value instanceof OffsetDateTime) return new HighWaterMark(Type.TIMESTAMP, Timestamp.from(((OffsetDateTime) value).toInstant()));
+        if (value instanceof LocalDate) return new HighWaterMark(Type.DATE, java.sql.Date.valueOf((LocalDate) value));
+        if (value instanceof byte[]) return new HighWaterMark(Type.BINARY, value);
+        if (value instanceof String) return new HighWaterMark(Type.STRING, value);
+        throw new IllegalArgumentException("Unsupported change tracking column type " + value.getClass().getName());
+    }
+
+    static HighWaterMark parse(String line) {
+        int tab = line.indexOf('\t');
+        if (tab < 0) throw new IllegalArgumentException("Not a high water mark: " + line);
+        Type type = Type.valueOf(line.substring(0, tab));
+        String text = line.substring(tab + 1).trim();
+        switch (type) {
+            case NUMBER:
+                return new HighWaterMark(type, new BigDecimal(text));
+            case TIMESTAMP:
+                return new HighWaterMark(type, Timestamp.valueOf(text));
+            case DATE:
+                return new HighWaterMark(type, java.sql.Date.valueOf(text));
+            case BINARY:
+                byte[] bytes = new byte[text.length() / 2];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+                }
+                return new HighWaterMark(type, bytes);
+            default:
+                return new HighWaterMark(type, text);
+        }
+    }
+
+    static HighWaterMark max(HighWaterMark a, HighWaterMark b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareTo(HighWaterMark other) {
+        if (type != other.type) {
+            throw new IllegalStateException("Cannot compare a " + type + " high water mark to a " + other.type);
+        }
+        if (type == Type.BINARY) return Arrays.compareUnsigned((byte[]) value, (byte[]) other.value);
+        return ((Comparable<Object>) value).compareTo(other.value);
+    }
+
+    /**
+     * Returns the value to bind to the change tracking query.
+     */
+    Object getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.NUMBER) return type + "\t" + ((BigDecimal) value).toPlainString();
+        if (type == Type.BINARY) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : (byte[]) value) hex.append(String.format("%02x", b));
+            return type + "\t" + hex;
+        }
+        return type + "\t" + value;
+    }
+}
@@ -0,0 +1,100 @@
+package no.kommune.bergen.tardis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Builds a new snapshot from the previous one, the rows changed since then and the keys of all the rows that exist
+ * now. All three are sorted by primary key and read once, side by side. The keys decide which rows are in the new
+ * snapshot: a key among the changes gets the changed row, any other key gets its row from the previous snapshot, and
+ * rows whose keys are gone are left out. Changed rows without a key were inserted after the keys were read, or deleted
+ * before, and are dropped.
+ */
+class IncrementalSnapshotMerge {
+
+    private final RecordKeyExtractor keyExtractor;
+    private int droppedChanges;
+
+    IncrementalSnapshotMerge(Collection<String> primaryKeyColumns) {
+        this.keyExtractor = new RecordKeyExtractor(primaryKeyColumns);
+    }
+
+    /**
+     * Writes the rows of the new snapshot to out, separated by newlines.
+     *
+     * @throws IllegalStateException if the input is not sorted, or a key is neither among the changes nor in the
+     *                               previous snapshot. A full export is needed then.
+     */
+    void merge(InputStream previousSnapshot, InputStream changes, InputStream keys, OutputStream out) throws IOException {
+        Side previous = new Side(previousSnapshot, "previous snapshot");
+        Side changed = new Side(changes, "changed rows");
+        Side current = new Side(keys, "keys");
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        boolean empty = true;
+        for (; current.line != null; current.next()) {
+            while (changed.line != null && keyExtractor.compare(changed.key, current.key) < 0) {
+                droppedChanges++;
+                changed.next();
+            }
+            while (previous.line != null && keyExtractor.compare(previous.key, current.key) < 0) {
+                previous.next();
+            }
+
+            String line;
+            if (changed.line != null && keyExtractor.compare(changed.key, current.key) == 0) {
+                line = changed.line;
+                changed.next();
+            } else if (previous.line != null && keyExtractor.compare(previous.key, current.key) == 0) {
+                line = previous.line;
+            } else {
+                throw new IllegalStateException("The row with key " + current.line + " is neither changed nor in the previous snapshot");
+            }
+
+            if (!empty) writer.write('\n');
+            writer.write(line);
+            empty = false;
+        }
+        for (; changed.line != null; changed.next()) droppedChanges++;
+        writer.flush();
+    }
+
+    /**
+     * Returns the number of changed rows left out of the merged snapshot because their keys were not among the keys.
+     */
+    int getDroppedChanges() {
+        return droppedChanges;
+    }
+
+    private class Side {
+        private final BufferedReader reader;
+        private final String name;
+        private String line;
+        private Object[] key;
+
+        Side(InputStream in, String name) throws IOException {
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+            this.name = name;
+            next();
+        }
+
+        void next() throws IOException {
+            Object[] previousKey = key;
+            do {
+                line = reader.readLine();
+            } while (line != null && !line.startsWith("{"));
+
+            key = line == null ? null : keyExtractor.extract(line);
+            if (key != null && previousKey != null && keyExtractor.compare(previousKey, key) >= 0) {
+                throw new IllegalStateException("Not sorted by primary key: the " + name + " at " + line);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package no.kommune.bergen.tardis;
+
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays every execution time of another trigger by a random amount between 0 and maxJitter milliseconds.
+ */
+class JitteredTrigger implements Trigger {
+
+    private final Trigger trigger;
+    private final long maxJitter;
+
+    JitteredTrigger(Trigger trigger, long maxJitter) {
+        this.trigger = trigger;
+        this.maxJitter = maxJitter;
+    }
+
+    @Override
+    public Date nextExecutionTime(TriggerContext triggerContext) {
+        Date next = trigger.nextExecutionTime(triggerContext);
+        if (next == null || maxJitter <= 0) return next;
+        return new Date(next.getTime() + ThreadLocalRandom.current().nextLong(maxJitter));
+    }
+}
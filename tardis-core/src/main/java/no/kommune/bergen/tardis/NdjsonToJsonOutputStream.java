@@ -26,6 +26,38 @@ class NdjsonToJsonOutputStream extends FilterOutputStream {
     @Override
     public void write(int b) throws IOException {
 
+        writePending();
+
+        if (b==NEWLINE) {
+            pendingNewline = true;
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+
+        for (int i = off; i < end; i++) {
+            if (b[i] == NEWLINE) {
+                writePending();
+                if (i > start) {
+                    out.write(b, start, i - start);
+                }
+                pendingNewline = true;
+                start = i + 1;
+            }
+        }
+
+        if (start < end) {
+            writePending();
+            out.write(b, start, end - start);
+        }
+    }
+
+    private void writePending() throws IOException {
         if (pendingOpening) {
             out.write(OPENING_BRACKET);
             pendingOpening = false;
@@ -35,12 +67,6 @@ class NdjsonToJsonOutputStream extends FilterOutputStream {
             out.write(OBJECT_SEPARATOR);
             pendingNewline = false;
         }
-
-        if (b==NEWLINE) {
-            pendingNewline = true;
-        } else {
-            out.write(b);
-        }
     }
 
     @Override
@@ -0,0 +1,103 @@
+package no.kommune.bergen.tardis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Reads the primary key values of a snapshot record without building the record. The parser stops as soon as all
+ * the key columns have been seen, and every other value is skipped.
+ */
+class RecordKeyExtractor implements Comparator<Object[]> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Map<String, Integer> keyPositions = new HashMap<>();
+
+    RecordKeyExtractor(Collection<String> primaryKeyColumns) {
+        for (String primaryKey : primaryKeyColumns) {
+            keyPositions.putIfAbsent(primaryKey, keyPositions.size());
+        }
+    }
+
+    /**
+     * Returns the key values in the order of the primary key columns. Columns that are missing from the record are
+     * returned as null, and so are all the columns when line is null.
+     */
+    Object[] extract(String line) throws IOException {
+        Object[] key = new Object[keyPositions.size()];
+        if (line == null) return key;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return key;
+
+            int remaining = key.length;
+            while (remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+                Integer position = keyPositions.get(parser.getCurrentName());
+                JsonToken token = parser.nextToken();
+                if (position == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                key[position] = getValue(parser, token);
+                remaining--;
+            }
+        }
+        return key;
+    }
+
+    private Object getValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                parser.skipChildren();
+                return null;
+        }
+    }
+
+    @Override
+    public int compare(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            Object keyA = a[i];
+            Object keyB = b[i];
+
+            if (keyA == null && keyB == null) continue;
+            if (keyA != null && keyB == null) return -1;
+            if (keyA == null && keyB != null) return 1;
+
+            int result = compareValues(keyA, keyB);
+            if (result == 0) continue;
+            return result;
+        }
+        return 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareValues(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass()) {
+            return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) return (BigDecimal) number;
+        if (number instanceof BigInteger) return new BigDecimal((BigInteger) number);
+        if (number instanceof Double || number instanceof Float) return BigDecimal.valueOf(number.doubleValue());
+        return BigDecimal.valueOf(number.longValue());
+    }
+}
@@ -1,23 +1,34 @@
 package no.kommune.bergen.tardis;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StopWatch;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
@@ -25,10 +36,18 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 public class RestService {
 
     private static final MediaType APPLICATION_X_NDJSON = MediaType.valueOf("application/x-ndjson");
+    private static final MediaType APPLICATION_X_JACKSON_SMILE = MediaType.valueOf("application/x-jackson-smile");
+    private static final MediaType APPLICATION_CBOR = MediaType.valueOf("application/cbor");
     private static final MediaType DEFAULT_MEDIA_TYPE = MediaType.TEXT_PLAIN;
+    private static final String GZIP = "gzip";
+    private static final int GZIP_BUFFER_SIZE = 16 * 1024;
 
     @Autowired
     private Tardis tardis;
+    @Autowired
+    private TableRegistryReloader reloader;
+    @Autowired
+    private ChangeFeed changeFeed;
     private Logger LOG = LoggerFactory.getLogger(RestService.class);
 
     @RequestMapping(method = RequestMethod.GET, value = "/{dataSourceName}/{tableName}")
@@ -38,16 +57,32 @@ public class RestService {
                            @RequestParam(required = false) String fromDate, @RequestParam(required = false) String toDate)
             throws IOException {
         try {
-            OutputStream out = prepareOutputStream(request, response);
+            MediaType outputContentType = getOutputContentType(request);
+            String contentEncoding = negotiateContentEncoding(request);
 
+            SnapshotRange range;
+            boolean immutable;
             if (isNotBlank(fromRevision) && isNotBlank(toRevision)) {
-                tardis.getDiff(dataSourceName, tableName, fromRevision, toRevision, out);
+                range = tardis.resolve(dataSourceName, tableName, fromRevision, toRevision);
+                immutable = isCommitId(fromRevision, range.getFromCommit()) && isCommitId(toRevision, range.getToCommit());
             } else if (isNotBlank(fromDate) && isNotBlank(toDate)) {
                 DateFormat df = new UtcDateFormat();
-                tardis.getDiff(dataSourceName, tableName, df.parse(fromDate), df.parse(toDate), out);
+                range = tardis.resolve(dataSourceName, tableName, df.parse(fromDate), df.parse(toDate));
+                immutable = false;
             } else {
                 throw new IllegalArgumentException("You must provide either fromRevision and toRevision or fromDate and toDate query params");
             }
+
+            // The change log only depends on the two snapshot blobs, so a client that has seen them can keep its copy
+            String eTag = createETag(range, tardis.getTable(dataSourceName, tableName), outputContentType, contentEncoding);
+            response.setHeader(HttpHeaders.VARY, "Accept, Accept-Encoding");
+            response.setHeader(HttpHeaders.CACHE_CONTROL, immutable ? "public, max-age=31536000, immutable" : "no-cache");
+            if (new ServletWebRequest(request, response).checkNotModified(eTag)) {
+                return;
+            }
+
+            OutputStream out = prepareOutputStream(response, outputContentType, contentEncoding);
+            tardis.getDiff(dataSourceName, tableName, range, getChangeLogFormat(outputContentType), out);
         } catch (HttpServerErrorException e) {
             LOG.error("Couldn't get changes", e);
             response.sendError(e.getStatusCode().value(), e.getMessage());
@@ -58,10 +93,82 @@ public class RestService {
     }
 
 
-    @RequestMapping(method = RequestMethod.GET, value = "/log", produces = "text/plain; charset=utf-8")
+    @RequestMapping(method = RequestMethod.GET, value = "/{dataSourceName}/{tableName}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @ResponseBody
-    public String log(HttpServletResponse response) {
-        return tardis.log();
+    public SseEmitter streamChanges(HttpServletResponse response,
+                                    @PathVariable String dataSourceName, @PathVariable String tableName,
+                                    @RequestParam(required = false) String since,
+                                    @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId)
+            throws IOException {
+        try {
+            return changeFeed.subscribe(dataSourceName, tableName, isNotBlank(lastEventId) ? lastEventId : since);
+        } catch (Exception e) {
+            LOG.error("Couldn't subscribe to changes", e);
+            response.sendError(e instanceof IllegalArgumentException ? HttpServletResponse.SC_NOT_FOUND : HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return null;
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/{dataSourceName}")
+    public void getDataSourceChanges(HttpServletRequest request, HttpServletResponse response,
+                                     @PathVariable String dataSourceName,
+                                     @RequestParam(required = false) String fromRevision, @RequestParam(required = false) String toRevision,
+                                     @RequestParam(required = false) String fromDate, @RequestParam(required = false) String toDate)
+            throws IOException {
+        // The path also matches the other endpoints and files like /favicon.ico, so anything unknown is not found
+        if (!tardis.hasDataSource(dataSourceName)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Data source named " + dataSourceName + " not found");
+            return;
+        }
+        try {
+            MediaType outputContentType = getOutputContentType(request);
+            if (getChangeLogFormat(outputContentType) != ChangeLogFormat.NDJSON) {
+                throw new HttpServerErrorException(HttpStatus.NOT_ACCEPTABLE,
+                        "The changes of a data source are only available as ndjson or json");
+            }
+            String contentEncoding = negotiateContentEncoding(request);
+
+            Map<Table, SnapshotRange> ranges;
+            if (isNotBlank(fromRevision) && isNotBlank(toRevision)) {
+                ranges = tardis.resolveChanged(dataSourceName, fromRevision, toRevision);
+            } else if (isNotBlank(fromDate) && isNotBlank(toDate)) {
+                DateFormat df = new UtcDateFormat();
+                ranges = tardis.resolveChanged(dataSourceName, df.parse(fromDate), df.parse(toDate));
+            } else {
+                throw new IllegalArgumentException("You must provide either fromRevision and toRevision or fromDate and toDate query params");
+            }
+
+            response.setHeader(HttpHeaders.VARY, "Accept, Accept-Encoding");
+            OutputStream out = prepareOutputStream(response, outputContentType, contentEncoding);
+            tardis.getDiffs(dataSourceName, ranges, out);
+        } catch (HttpServerErrorException e) {
+            LOG.error("Couldn't get changes", e);
+            response.sendError(e.getStatusCode().value(), e.getMessage());
+        } catch (Exception e) {
+            LOG.error("Couldn't get changes", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/log")
+    public void log(HttpServletResponse response,
+                    @RequestParam(required = false) Integer limit, @RequestParam(required = false) String dataSource,
+                    @RequestParam(required = false) String since, @RequestParam(required = false) String until)
+            throws IOException {
+        try {
+            DateFormat df = new UtcDateFormat();
+            Date sinceDate = isNotBlank(since) ? df.parse(since) : null;
+            Date untilDate = isNotBlank(until) ? df.parse(until) : null;
+
+            response.setContentType("text/plain; charset=utf-8");
+            tardis.log(sinceDate, untilDate, isNotBlank(dataSource) ? dataSource : null,
+                    limit == null ? Integer.MAX_VALUE : limit, response.getWriter());
+        } catch (ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Dates must be formatted as yyyy-MM-ddTHH:mm:ssZ");
+        } catch (Exception e) {
+            LOG.error("Couldn't get log", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
     }
 
 
@@ -91,7 +198,46 @@ public class RestService {
     }
 
 
-    private OutputStream prepareOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    @RequestMapping(method = RequestMethod.POST, value = "/reload", produces = "text/plain; charset=utf-8")
+    @ResponseBody
+    public String reloadConfiguration(HttpServletResponse response) throws IOException {
+        try {
+            TableRegistry registry = reloader.reload();
+            return String.format("Configuration reloaded, %d data sources and %d tables",
+                    registry.getDataSources().size(), registry.getTables().size());
+        } catch (Exception e) {
+            LOG.error("Couldn't reload configuration", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return null;
+        }
+    }
+
+
+    void setTardis(Tardis tardis) {
+        this.tardis = tardis;
+    }
+
+    private boolean isCommitId(String revision, ObjectId commit) {
+        return revision.length() >= 7 && commit.name().startsWith(revision.toLowerCase());
+    }
+
+    private String createETag(SnapshotRange range, Table table, MediaType outputContentType, String contentEncoding) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(range.getFromBlob().name().getBytes(StandardCharsets.UTF_8));
+            digest.update(range.getToBlob().name().getBytes(StandardCharsets.UTF_8));
+            digest.update(String.join(",", table.getPrimaryKeys()).getBytes(StandardCharsets.UTF_8));
+            digest.update(outputContentType.toString().getBytes(StandardCharsets.UTF_8));
+            if (contentEncoding != null) {
+                digest.update(contentEncoding.getBytes(StandardCharsets.UTF_8));
+            }
+            return "\"" + ObjectId.fromRaw(digest.digest()).name() + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MediaType getOutputContentType(HttpServletRequest request) {
 
         // look for format parameter first, then at accept header
         MediaType outputContentType = lookForFormatParameter(request);
@@ -99,12 +245,33 @@ public class RestService {
         if(outputContentType==null) {
             outputContentType = negotiateContentType(request);
         }
+        return outputContentType;
+    }
+
+    private ChangeLogFormat getChangeLogFormat(MediaType outputContentType) {
+        if (outputContentType == APPLICATION_X_JACKSON_SMILE) {
+            return ChangeLogFormat.SMILE;
+        }
+        if (outputContentType == APPLICATION_CBOR) {
+            return ChangeLogFormat.CBOR;
+        }
+        return ChangeLogFormat.NDJSON;
+    }
 
-        response.setCharacterEncoding("UTF-8");
+    private OutputStream prepareOutputStream(HttpServletResponse response, MediaType outputContentType, String contentEncoding) throws IOException {
+
+        if (getChangeLogFormat(outputContentType) == ChangeLogFormat.NDJSON) {
+            response.setCharacterEncoding("UTF-8");
+        }
         response.setHeader("Content-Type", outputContentType.toString() );
 
         OutputStream outputStream = response.getOutputStream();
 
+        if (GZIP.equals(contentEncoding)) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+            outputStream = new GZIPOutputStream(outputStream, GZIP_BUFFER_SIZE);
+        }
+
         if (outputContentType == MediaType.APPLICATION_JSON) {
             // default output is ndjson, convert to json
             outputStream = new NdjsonToJsonOutputStream(outputStream);
@@ -113,6 +280,43 @@ public class RestService {
         return outputStream;
     }
 
+    /**
+     * Returns gzip if the client accepts it, otherwise null for an uncompressed response.
+     */
+    private String negotiateContentEncoding(HttpServletRequest request) {
+
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        Double gzipQuality = null;
+        Double wildcardQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (name.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+
+        Double quality = gzipQuality != null ? gzipQuality : wildcardQuality;
+        return quality != null && quality > 0 ? GZIP : null;
+    }
+
     private MediaType lookForFormatParameter(HttpServletRequest request) {
 
         String requestedFormat = request.getParameter("format");
@@ -125,9 +329,13 @@ public class RestService {
                 return MediaType.APPLICATION_JSON;
             case "ndjson":
                 return APPLICATION_X_NDJSON;
+            case "smile":
+                return APPLICATION_X_JACKSON_SMILE;
+            case "cbor":
+                return APPLICATION_CBOR;
             default:
                 throw new HttpServerErrorException(HttpStatus.BAD_REQUEST,
-                        "Unsupported format parameter, use json og ndjson");
+                        "Unsupported format parameter, use json, ndjson, smile or cbor");
         }
     }
 
@@ -153,10 +361,16 @@ public class RestService {
 
             if (candidateMediaType.includes(APPLICATION_X_NDJSON))
                 return APPLICATION_X_NDJSON;
+
+            if (candidateMediaType.includes(APPLICATION_X_JACKSON_SMILE))
+                return APPLICATION_X_JACKSON_SMILE;
+
+            if (candidateMediaType.includes(APPLICATION_CBOR))
+                return APPLICATION_CBOR;
         }
 
         // none of the accepted media types are supported
         throw new HttpServerErrorException(HttpStatus.NOT_ACCEPTABLE,
-                "Unsupported accept media type, use application/json or application/x-ndjson");
+                "Unsupported accept media type, use application/json, application/x-ndjson, application/x-jackson-smile or application/cbor");
     }
 }
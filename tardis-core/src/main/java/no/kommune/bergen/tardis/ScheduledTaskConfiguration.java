@@ -3,13 +3,22 @@ package no.kommune.bergen.tardis;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.scheduling.support.CronTrigger;
 
 import java.io.*;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Configuration
 @EnableScheduling
@@ -17,41 +26,48 @@ public class ScheduledTaskConfiguration implements SchedulingConfigurer {
 
     private TardisConfiguration config;
     private Tardis tardis;
+    private TableRegistryReloader reloader;
+
+    private final Map<String, ExportState> exportStates = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledExport> scheduledExports = new ConcurrentHashMap<>();
+    private final Semaphore exportPermits;
 
     private static final Logger log = LoggerFactory.getLogger(ScheduledTaskConfiguration.class);
 
-    public ScheduledTaskConfiguration(TardisConfiguration config, Tardis tardis) {
+    // How long an export waits before trying again for a free slot, see maxConcurrentExports
+    private static final long PERMIT_RETRY_DELAY = 1000;
+
+    public ScheduledTaskConfiguration(TardisConfiguration config, Tardis tardis, TableRegistryReloader reloader) {
         this.config = config;
         this.tardis = tardis;
+        this.reloader = reloader;
+        this.exportPermits = config.getMaxConcurrentExports() > 0 ? new Semaphore(config.getMaxConcurrentExports()) : null;
         log.info("Setting up scheduling");
     }
 
+    @Bean
+    public ThreadPoolTaskScheduler exportTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(config.getSchedulerThreads());
+        scheduler.setThreadNamePrefix("tardis-scheduler-");
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        return scheduler;
+    }
+
     @Override
     public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.setTaskScheduler(exportTaskScheduler());
+
+        if (config.getConfigReloadInterval() > 0) {
+            taskRegistrar.addFixedDelayTask(reloader::reloadIfModified, config.getConfigReloadInterval());
+        }
+
         if (!config.isCron()) {
             log.info("Cron is disabled");
             return;
         }
 
-        for (TardisConfiguration.DataSourceConfig datasource : config.getDataSources()) {
-            log.info("Enabling scheduling for " + datasource.getName() + " with cron expression " + datasource.getCronExpression());
-            String datasourceName = datasource.getName();
-            taskRegistrar.addTriggerTask(
-                    () -> {
-                        try {
-                            log.info("Export " + datasourceName + " starting");
-                            tardis.exportGroup(datasourceName);
-                            writeStatus(datasourceName + ".status", false);
-                            touchFile(datasourceName + ".ok");
-                            log.info("Export " + datasourceName + " finished");
-                        } catch (Exception e) {
-                            log.error(datasourceName + " failed.", e);
-                            writeStatus(datasourceName + ".status", true);
-                        }
-                    },
-                    new CronTrigger(datasource.getCronExpression())
-            );
-        }
+        scheduleExports();
 
         if (StringUtils.isNotEmpty(config.getOptimizeCron())) {
             log.info("Enabling scheduling for optimization with cron expression " + config.getOptimizeCron());
@@ -70,6 +86,108 @@ public class ScheduledTaskConfiguration implements SchedulingConfigurer {
         }
     }
 
+    @EventListener
+    public void onTableRegistryReloaded(TableRegistryReloadedEvent event) {
+        if (config.isCron()) scheduleExports();
+    }
+
+    /**
+     * Schedules the exports of the configured data sources. Schedules of data sources that have been removed or have
+     * a new cron expression are cancelled first, without interrupting exports that are running.
+     */
+    synchronized void scheduleExports() {
+        for (Map.Entry<String, ScheduledExport> entry : scheduledExports.entrySet()) {
+            TardisConfiguration.DataSourceConfig datasource = config.getDataSourceConfig(entry.getKey());
+            if (datasource == null || !entry.getValue().isScheduledFor(datasource)) {
+                log.info("Disabling scheduling for " + entry.getKey());
+                entry.getValue().future.cancel(false);
+                scheduledExports.remove(entry.getKey());
+            }
+        }
+
+        for (TardisConfiguration.DataSourceConfig datasource : config.getDataSources()) {
+            String datasourceName = datasource.getName();
+            if (scheduledExports.containsKey(datasourceName)) continue;
+
+            log.info("Enabling scheduling for " + datasourceName + " with cron expression " + datasource.getCronExpression());
+            ScheduledFuture<?> future = exportTaskScheduler().schedule(
+                    () -> runExport(datasourceName),
+                    new JitteredTrigger(new CronTrigger(datasource.getCronExpression()), datasource.getStartJitter())
+            );
+            scheduledExports.put(datasourceName, new ScheduledExport(datasource, future));
+        }
+    }
+
+    private static class ScheduledExport {
+        private final String cronExpression;
+        private final long startJitter;
+        private final ScheduledFuture<?> future;
+
+        ScheduledExport(TardisConfiguration.DataSourceConfig datasource, ScheduledFuture<?> future) {
+            this.cronExpression = datasource.getCronExpression();
+            this.startJitter = datasource.getStartJitter();
+            this.future = future;
+        }
+
+        boolean isScheduledFor(TardisConfiguration.DataSourceConfig datasource) {
+            return cronExpression.equals(datasource.getCronExpression()) && startJitter == datasource.getStartJitter();
+        }
+    }
+
+    /**
+     * Runs the export of the data source, unless its previous export is still running, in which case the run is
+     * skipped or queued according to the overlap policy. Never waits on the calling scheduler thread: a queued run is
+     * started by the export it waits for, and a run waiting for a free export slot is tried again later.
+     */
+    void runExport(String datasourceName) {
+        ExportState state = exportStates.computeIfAbsent(datasourceName, name -> new ExportState());
+        if (!state.running.compareAndSet(false, true)) {
+            if (config.getOverlapPolicy() == TardisConfiguration.OverlapPolicy.SKIP || !state.queued.compareAndSet(false, true)) {
+                log.warn("Export " + datasourceName + " is still running, skipping this run");
+            } else {
+                log.info("Export " + datasourceName + " is still running, queueing this run");
+            }
+            return;
+        }
+        startExport(datasourceName, state);
+    }
+
+    private void startExport(String datasourceName, ExportState state) {
+        if (exportPermits != null && !exportPermits.tryAcquire()) {
+            exportTaskScheduler().schedule(() -> startExport(datasourceName, state), Instant.now().plusMillis(PERMIT_RETRY_DELAY));
+            return;
+        }
+        try {
+            export(datasourceName);
+        } finally {
+            if (exportPermits != null) exportPermits.release();
+            state.running.set(false);
+            // Cleared after running, so that a run queued in between is not lost
+            if (state.queued.getAndSet(false)) {
+                exportTaskScheduler().execute(() -> runExport(datasourceName));
+            }
+        }
+    }
+
+    private void export(String datasourceName) {
+        try {
+            log.info("Export " + datasourceName + " starting");
+            ExportReport report = tardis.exportGroup(datasourceName);
+            writeStatus(datasourceName + ".status", false);
+            touchFile(datasourceName + ".ok");
+            log.info("Export " + datasourceName + " finished, " + report.getWritten() + " tables written, "
+                    + report.getUnchanged() + " unchanged, " + report.getFailed() + " failed");
+        } catch (Exception e) {
+            log.error(datasourceName + " failed.", e);
+            writeStatus(datasourceName + ".status", true);
+        }
+    }
+
+    private static class ExportState {
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final AtomicBoolean queued = new AtomicBoolean();
+    }
+
     private void touchFile(String filename) {
         File file = new File(getStatusDirectory(), filename);
         try {
@@ -0,0 +1,74 @@
+package no.kommune.bergen.tardis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Finds the changes between two snapshots with a merge join on the primary key. Both snapshots are sorted by primary
+ * key, so they are read once, side by side, and only the current record of each is kept in memory. The keys are only
+ * parsed where the two snapshots differ.
+ */
+class SnapshotJoin {
+
+    private final RecordKeyExtractor keyExtractor;
+    private final ChangeLogWriter writer;
+
+    SnapshotJoin(Collection<String> primaryKeyColumns, ChangeLogWriter writer) {
+        this.keyExtractor = new RecordKeyExtractor(primaryKeyColumns);
+        this.writer = writer;
+    }
+
+    void join(InputStream fromSnapshot, InputStream toSnapshot) throws IOException {
+        Side from = new Side(fromSnapshot);
+        Side to = new Side(toSnapshot);
+
+        while (from.line != null || to.line != null) {
+            if (from.line != null && from.line.equals(to.line)) {
+                from.next();
+                to.next();
+                continue;
+            }
+
+            int compareResult = keyExtractor.compare(from.key(), to.key());
+
+            if (compareResult == 0) {
+                writer.changed(from.line, to.line);
+                from.next();
+                to.next();
+            } else if (compareResult > 0) {
+                writer.added(to.line);
+                to.next();
+            } else {
+                writer.deleted(from.line);
+                from.next();
+            }
+        }
+    }
+
+    private class Side {
+        private final BufferedReader reader;
+        private String line;
+        private Object[] key;
+
+        Side(InputStream snapshot) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(snapshot, StandardCharsets.UTF_8), 65536);
+            next();
+        }
+
+        void next() throws IOException {
+            key = null;
+            do {
+                line = reader.readLine();
+            } while (line != null && !line.startsWith("{"));
+        }
+
+        Object[] key() throws IOException {
+            if (key == null) key = keyExtractor.extract(line);
+            return key;
+        }
+    }
+}
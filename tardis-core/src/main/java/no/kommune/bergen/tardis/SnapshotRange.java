@@ -0,0 +1,49 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * The two versions of a snapshot file that a change log is computed between: the commits the requested revisions
+ * resolved to, and the blobs the file had in those commits. A file that does not exist in a commit has the zero id as
+ * its blob id. As blobs never change, the change log between two blob ids never changes either.
+ */
+class SnapshotRange {
+
+    private final String filename;
+    private final ObjectId fromCommit;
+    private final ObjectId toCommit;
+    private final ObjectId fromBlob;
+    private final ObjectId toBlob;
+
+    SnapshotRange(String filename, ObjectId fromCommit, ObjectId toCommit, ObjectId fromBlob, ObjectId toBlob) {
+        this.filename = filename;
+        this.fromCommit = fromCommit;
+        this.toCommit = toCommit;
+        this.fromBlob = fromBlob;
+        this.toBlob = toBlob;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    ObjectId getFromCommit() {
+        return fromCommit;
+    }
+
+    ObjectId getToCommit() {
+        return toCommit;
+    }
+
+    ObjectId getFromBlob() {
+        return fromBlob;
+    }
+
+    ObjectId getToBlob() {
+        return toBlob;
+    }
+
+    boolean isUnchanged() {
+        return fromBlob.equals(toBlob);
+    }
+}
@@ -1,95 +1,130 @@
 package no.kommune.bergen.tardis;
 
+import io.micrometer.core.instrument.Tags;
+import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.GarbageCollectCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.diff.DiffEntry;
-import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
-import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 @Component
 class SnapshotStore {
 
+    @Autowired
+    private TardisMetrics metrics = new TardisMetrics();
+
     private Git git;
+    private CommitTimeIndex commitIndex;
+    private CommitLog commitLog;
+    private File tempDirectory;
+    private final Map<String, ObjectId> pendingSnapshots = new ConcurrentHashMap<>();
+    private final List<CommitListener> commitListeners = new CopyOnWriteArrayList<>();
 
     private Logger LOG = LoggerFactory.getLogger(SnapshotStore.class);
 
 
     public String log() {
-        StringBuilder log = new StringBuilder();
-        ObjectReader reader = null;
-        try {
-            reader = git.getRepository().newObjectReader();
-            for (RevCommit commit : git.log().call()) {
-                log.append(commit.getName()).append(" ");
-                log.append(formatGitDate(commit.getCommitTime()));
-                log.append(" ");
-                log.append(commit.getShortMessage());
-                log.append("\n");
-
-                appendFiles(commit, log);
+        StringWriter log = new StringWriter();
+        log(null, null, null, Integer.MAX_VALUE, log);
+        return log.toString();
+    }
 
-                log.append("\n\n");
+    /**
+     * Writes the commits made between since and until (both optional) to out, newest first. Only commits made by
+     * the given data source are included if dataSource is not null, and no more than limit commits are written.
+     */
+    public void log(Date since, Date until, String dataSource, int limit, Writer out) {
+        try {
+            DateFormat df = new UtcDateFormat();
+            int[] count = {0};
+            if (!commitLog.isAt(git.getRepository().resolve(Constants.HEAD))) {
+                int added = commitLog.catchUp(git.getRepository());
+                if (added > 0) LOG.warn("Added {} commits made outside of Tardis to the commit log", added);
             }
-            return log.toString();
-        } catch (Exception e) {
+            commitLog.visit(since, until, (commitId, commitTime, message, files) -> {
+                if (dataSource != null && !dataSource.equals(message)) return true;
+                if (count[0]++ >= limit) return false;
+
+                out.write(commitId + " " + df.format(commitTime) + " " + message + "\n");
+                out.write(files);
+                out.write("\n\n");
+                return true;
+            });
+            out.flush();
+        } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (null != reader) reader.close();
         }
     }
 
-    private void appendFiles(RevCommit commit, StringBuilder log) throws IOException {
-        if (commit.getParentCount() == 0) return;
-        RevCommit parent = commit.getParent(0);
-        DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
-        df.setRepository(git.getRepository());
-        df.setDiffComparator(RawTextComparator.DEFAULT);
-        int i = 0;
-        for (DiffEntry diffEntry : df.scan(parent.getTree(), commit.getTree())) {
-            log.append(diffEntry.getNewPath());
-            log.append(", ");
-            i++;
-        }
-        if (i > 0) log.setLength(log.length() - 2);
-    }
-
-    private String formatGitDate(int date) {
-        DateFormat df = new UtcDateFormat();
-        return df.format(new Date(date * 1000L));
-    }
-
-
     @Autowired
     public void setConfiguration(TardisConfiguration configuration) {
-        setWorkingDirectory(configuration.getWorkingDirectory());
+        setWorkingDirectory(configuration.getWorkingDirectory(), configuration.isBareRepository());
     }
 
     void setWorkingDirectory(String workingDirectory) {
+        setWorkingDirectory(workingDirectory, false);
+    }
+
+    /**
+     * Opens the repository in workingDirectory, or creates it. A new repository is bare if bareRepository is set, an
+     * existing one is used the way it was created.
+     */
+    void setWorkingDirectory(String workingDirectory, boolean bareRepository) {
         try {
             File repository = new File(workingDirectory);
 
@@ -97,17 +132,40 @@ class SnapshotStore {
 
             try {
                 git = Git.open(repository);
+                if (bareRepository && !git.getRepository().isBare()) {
+                    LOG.warn("{} has a working tree, snapshots will be written to it even though bareRepository is set", workingDirectory);
+                }
             } catch (RepositoryNotFoundException e) {
-                git = Git.init().setDirectory(repository).call();
-                RevCommit initialCommit = git.commit().setMessage("initial commit").call();
-                git.tag().setName("initial").setObjectId(initialCommit).call();
+                git = Git.init().setDirectory(repository).setBare(bareRepository).call();
+                ObjectId initialCommit;
+                if (bareRepository) {
+                    try (ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+                        initialCommit = commitTree(inserter, inserter.insert(new TreeFormatter()), null, "initial commit");
+                    }
+                } else {
+                    initialCommit = git.commit().setMessage("initial commit").call();
+                }
+                git.tag().setName("initial").setObjectId(git.getRepository().parseCommit(initialCommit)).call();
             }
+
+            if (isBare()) {
+                // The repository is the git directory itself, so exported files are kept out of it
+                tempDirectory = new File(repository.getAbsoluteFile().getParentFile(), repository.getName() + ".tmp");
+                tempDirectory.mkdirs();
+            } else {
+                tempDirectory = git.getRepository().getWorkTree();
+            }
+
+            commitIndex = new CommitTimeIndex(new File(git.getRepository().getDirectory(), "tardis-commit-index"));
+            commitIndex.open(git.getRepository());
+            commitLog = new CommitLog(new File(git.getRepository().getDirectory(), "tardis-commit-log"));
+            commitLog.open(git.getRepository());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void addSnapshot(String filename) {
+    public synchronized void addSnapshot(String filename) {
         try {
             git.add().addFilepattern(filename).call();
 
@@ -116,24 +174,207 @@ class SnapshotStore {
         }
     }
 
-    public void commit(String message) {
+    /**
+     * Adds a snapshot written to a temporary file. In a bare repository the file is inserted as a blob and kept
+     * pending until the next commit, otherwise it replaces the snapshot file in the working tree. The temporary file
+     * is gone afterwards.
+     */
+    public void addSnapshot(String filename, File snapshot) {
+        try {
+            if (isBare()) {
+                ObjectId blobId;
+                try (ObjectInserter inserter = git.getRepository().newObjectInserter();
+                     InputStream in = new FileInputStream(snapshot)) {
+                    blobId = inserter.insert(Constants.OBJ_BLOB, snapshot.length(), in);
+                    inserter.flush();
+                }
+                Files.delete(snapshot.toPath());
+                pendingSnapshots.put(filename, blobId);
+            } else {
+                File file = new File(git.getRepository().getWorkTree(), filename);
+                Files.move(snapshot.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                addSnapshot(filename);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    boolean isBare() {
+        return git.getRepository().isBare();
+    }
+
+    /**
+     * Returns the directory for the temporary files of an export. That is the working tree, so that a snapshot can be
+     * moved into place, or in a bare repository a directory next to it.
+     */
+    File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * Commits the given files with the data source name as message.
+     */
+    public synchronized void commit(String message, Collection<String> filenames) {
+        if (filenames.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            if (isBare()) {
+                commitPendingSnapshots(message, filenames);
+            } else {
+                commitWorkingTree(message, filenames);
+            }
+        } finally {
+            metrics.timer(TardisMetrics.STORE_COMMIT, TardisMetrics.tags(message)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void commitWorkingTree(String message, Collection<String> filenames) {
         try {
-            Status status = git.status().call();
+            StatusCommand statusCommand = git.status();
+            filenames.forEach(statusCommand::addPath);
+            Status status = statusCommand.call();
 
             status.getMissing().forEach(f->LOG.warn("The file {} was expected by Tardis but is missing on disk. It can be recovered using 'git checkout -- {}'", f, f));
             status.getRemoved().forEach(f->LOG.warn("The file {} has been marked for removal from Tardis using an external tool (using 'git rm'?)", f));
             status.getModified().forEach(f->LOG.warn("The file {} has been modified outside of Tardis. The changes will not be committed. The file can be reverted using 'git checkout -- {}'", f, f));
             status.getUntracked().forEach(f->LOG.warn("The file {} exists in the workspace but is unknown to Tardis. It should probably be deleted or moved elsewhere.", f));
 
-            boolean hasAnythingToCommit = !status.getChanged().isEmpty() || !status.getAdded().isEmpty();
-            if (hasAnythingToCommit) {
-                git.commit().setMessage(message).call();
+            // Only commit the given files, so that snapshots staged by other data sources exporting at the same
+            // time end up in their own commits
+            Set<String> staged = new TreeSet<>(status.getChanged());
+            staged.addAll(status.getAdded());
+            if (!staged.isEmpty()) {
+                CommitCommand commitCommand = git.commit().setMessage(message);
+                staged.forEach(commitCommand::setOnly);
+                RevCommit commit = commitCommand.call();
+                commitIndex.add(commit, commit.getCommitTime());
+                commitLog.add(commit, commit.getCommitTime(), message, staged);
+                fireCommitted(commit, staged);
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Commits the pending snapshots among filenames without a working tree or an index. The tree of HEAD is copied,
+     * with the pending blobs in place of the old ones.
+     */
+    private void commitPendingSnapshots(String message, Collection<String> filenames) {
+        Map<String, ObjectId> snapshots = new TreeMap<>();
+        for (String filename : filenames) {
+            ObjectId blobId = pendingSnapshots.remove(filename);
+            if (blobId != null) snapshots.put(filename, blobId);
+        }
+        if (snapshots.isEmpty()) return;
+
+        Repository repository = git.getRepository();
+        try (ObjectInserter inserter = repository.newObjectInserter();
+             RevWalk walk = new RevWalk(repository)) {
+            RevCommit head = walk.parseCommit(repository.resolve(Constants.HEAD));
+
+            DirCache dirCache = DirCache.newInCore();
+            DirCacheBuilder builder = dirCache.builder();
+            try (TreeWalk treeWalk = new TreeWalk(repository)) {
+                treeWalk.addTree(head.getTree());
+                treeWalk.setRecursive(true);
+                while (treeWalk.next()) {
+                    if (snapshots.containsKey(treeWalk.getPathString())) continue;
+                    DirCacheEntry entry = new DirCacheEntry(treeWalk.getRawPath());
+                    entry.setFileMode(treeWalk.getFileMode(0));
+                    entry.setObjectId(treeWalk.getObjectId(0));
+                    builder.add(entry);
+                }
+            }
+            snapshots.forEach((filename, blobId) -> {
+                DirCacheEntry entry = new DirCacheEntry(filename);
+                entry.setFileMode(FileMode.REGULAR_FILE);
+                entry.setObjectId(blobId);
+                builder.add(entry);
+            });
+            builder.finish();
+
+            ObjectId tree = dirCache.writeTree(inserter);
+            if (tree.equals(head.getTree())) return;
+
+            RevCommit commit = walk.parseCommit(commitTree(inserter, tree, head, message));
+            Set<String> changed = new TreeSet<>();
+            snapshots.forEach((filename, blobId) -> {
+                try (TreeWalk treeWalk = TreeWalk.forPath(repository, filename, head.getTree())) {
+                    if (treeWalk == null || !blobId.equals(treeWalk.getObjectId(0))) changed.add(filename);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            commitIndex.add(commit, commit.getCommitTime());
+            commitLog.add(commit, commit.getCommitTime(), message, changed);
+            fireCommitted(commit, changed);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    interface CommitListener {
+        /**
+         * Called after a commit has been made, with the files it changed. Called with the store locked, so it should
+         * return quickly.
+         */
+        void committed(ObjectId commitId, Set<String> filenames);
+    }
+
+    void addCommitListener(CommitListener listener) {
+        commitListeners.add(listener);
+    }
+
+    void removeCommitListener(CommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+    private void fireCommitted(ObjectId commitId, Set<String> filenames) {
+        for (CommitListener listener : commitListeners) {
+            try {
+                listener.committed(commitId, filenames);
+            } catch (RuntimeException e) {
+                LOG.error("Commit listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the commit id of HEAD.
+     */
+    ObjectId getHead() {
+        try {
+            return git.getRepository().resolve(Constants.HEAD);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectId commitTree(ObjectInserter inserter, ObjectId tree, ObjectId parent, String message) throws IOException {
+        Repository repository = git.getRepository();
+        PersonIdent ident = new PersonIdent(repository);
+        CommitBuilder commitBuilder = new CommitBuilder();
+        commitBuilder.setTreeId(tree);
+        if (parent != null) commitBuilder.setParentId(parent);
+        commitBuilder.setAuthor(ident);
+        commitBuilder.setCommitter(ident);
+        commitBuilder.setMessage(message);
+        ObjectId commitId = inserter.insert(commitBuilder);
+        inserter.flush();
+
+        RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(commitId);
+        refUpdate.setExpectedOldObjectId(parent != null ? parent : ObjectId.zeroId());
+        refUpdate.setRefLogMessage("commit: " + message, false);
+        RefUpdate.Result result = refUpdate.update();
+        if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD) {
+            throw new IOException("Could not update HEAD to " + commitId.name() + ": " + result);
+        }
+        return commitId;
+    }
+
     public InputStream getLatestSnapshot(String filename) {
         return getSnapshot(filename, new Date());
     }
@@ -155,40 +396,159 @@ class SnapshotStore {
         }
     }
 
-    byte[] getDiff(String filename, String fromRevstr, String toRevstr) {
-        return getDiffInternal(filename, fromRevstr, toRevstr);
+    /**
+     * Resolves two revisions of a snapshot file to commits and blobs. A revision is either a Date or a revision
+     * string understood by git.
+     */
+    SnapshotRange resolve(String filename, Object fromRevision, Object toRevision) {
+        try (ObjectReader reader = git.getRepository().newObjectReader()) {
+            ObjectId fromCommit = resolveObjectId(fromRevision, reader);
+            ObjectId toCommit = resolveObjectId(toRevision, reader);
+            return new SnapshotRange(filename, fromCommit, toCommit,
+                    getBlobId(filename, fromCommit, reader), getBlobId(filename, toCommit, reader));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    byte[] getDiff(String filename, Date from, Date to) {
-        return getDiffInternal(filename, from, to);
+    /**
+     * Resolves two revisions once for several snapshot files, and returns the ranges of the files that differ between
+     * them, in the order of filenames. Both trees are walked together, and files with the same blob at both revisions
+     * are skipped without being read.
+     */
+    Map<String, SnapshotRange> resolveChanged(Collection<String> filenames, Object fromRevision, Object toRevision) {
+        try (ObjectReader reader = git.getRepository().newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            ObjectId fromCommit = resolveObjectId(fromRevision, reader);
+            ObjectId toCommit = resolveObjectId(toRevision, reader);
+            Map<String, SnapshotRange> changed = new HashMap<>();
+            if (!filenames.isEmpty()) {
+                treeWalk.addTree(walk.parseCommit(fromCommit).getTree());
+                treeWalk.addTree(walk.parseCommit(toCommit).getTree());
+                treeWalk.setRecursive(true);
+                treeWalk.setFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(filenames), TreeFilter.ANY_DIFF));
+                while (treeWalk.next()) {
+                    changed.put(treeWalk.getPathString(), new SnapshotRange(treeWalk.getPathString(), fromCommit, toCommit,
+                            treeWalk.getObjectId(0), treeWalk.getObjectId(1)));
+                }
+            }
+
+            Map<String, SnapshotRange> ranges = new LinkedHashMap<>();
+            for (String filename : filenames) {
+                if (changed.containsKey(filename)) ranges.put(filename, changed.get(filename));
+            }
+            return ranges;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private byte[] getDiffInternal(String filename, Object fromRevision, Object toRevision) {
+    /**
+     * Writes the git diff of a snapshot file between the two commits of the range to out.
+     */
+    void getDiff(SnapshotRange range, OutputStream out) {
         ObjectReader reader = null;
         try {
             reader = git.getRepository().newObjectReader();
-            ObjectId fromCommit = resolveObjectId(fromRevision, reader);
-            ObjectId toCommit = resolveObjectId(toRevision, reader);
 
-            try(ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            git.diff()
+                    .setOutputStream(out)
+                    .setPathFilter(PathFilter.create(range.getFilename()))
+                    .setOldTree(createTreeIterator(range.getFromCommit(), reader))
+                    .setNewTree(createTreeIterator(range.getToCommit(), reader))
+                    .call();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
 
-                git.diff()
-                        .setOutputStream(out)
-                        .setPathFilter(PathFilter.create(filename))
-                        .setOldTree(createTreeIterator(fromCommit, reader))
-                        .setNewTree(createTreeIterator(toCommit, reader))
-                        .call();
+            if (null != reader) reader.close();
+        }
+    }
 
-                return out.toByteArray();
+    /**
+     * Streams the two blobs of the range straight from the object database. A file that does not exist at a
+     * revision is read as empty. When the file is the same at both revisions, both streams are empty.
+     */
+    void readSnapshots(SnapshotRange range, SnapshotPairReader snapshotPairReader) {
+        ObjectReader reader = null;
+        try {
+            reader = git.getRepository().newObjectReader();
+            ObjectId fromBlob = range.isUnchanged() ? ObjectId.zeroId() : range.getFromBlob();
+            ObjectId toBlob = range.isUnchanged() ? ObjectId.zeroId() : range.getToBlob();
+
+            try (InputStream from = openBlob(fromBlob, reader); InputStream to = openBlob(toBlob, reader)) {
+                snapshotPairReader.read(from, to);
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-
             if (null != reader) reader.close();
         }
     }
 
+    /**
+     * Returns the blob id of the snapshot file at HEAD, or the zero id if it has not been committed.
+     */
+    ObjectId getHeadBlobId(String filename) {
+        try (ObjectReader reader = git.getRepository().newObjectReader()) {
+            ObjectId head = git.getRepository().resolve(Constants.HEAD);
+            return head == null ? ObjectId.zeroId() : getBlobId(filename, head, reader);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens a blob returned by getHeadBlobId. The zero id is read as empty.
+     */
+    InputStream openBlob(ObjectId blobId) {
+        ObjectReader reader = git.getRepository().newObjectReader();
+        try {
+            return new FilterInputStream(openBlob(blobId, reader)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        reader.close();
+                    }
+                }
+            };
+        } catch (Exception e) {
+            reader.close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    long getBlobSize(ObjectId blobId) {
+        try (ObjectReader reader = git.getRepository().newObjectReader()) {
+            return reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectId getBlobId(String filename, ObjectId commitId, ObjectReader reader) throws IOException {
+        try (RevWalk walk = new RevWalk(reader)) {
+            TreeWalk treeWalk = TreeWalk.forPath(reader, filename, walk.parseCommit(commitId).getTree());
+            return treeWalk == null ? ObjectId.zeroId() : treeWalk.getObjectId(0);
+        }
+    }
+
+    private InputStream openBlob(ObjectId blobId, ObjectReader reader) throws IOException {
+        if (ObjectId.zeroId().equals(blobId)) return new ByteArrayInputStream(new byte[0]);
+        return reader.open(blobId, Constants.OBJ_BLOB).openStream();
+    }
+
+    interface SnapshotPairReader {
+        void read(InputStream fromSnapshot, InputStream toSnapshot) throws IOException;
+    }
+
     private AbstractTreeIterator createTreeIterator(ObjectId id, ObjectReader reader) throws Exception {
         CanonicalTreeParser parser = new CanonicalTreeParser();
         parser.reset(reader, new RevWalk(git.getRepository()).parseTree(id));
@@ -196,19 +556,19 @@ class SnapshotStore {
     }
 
     private RevCommit getCommitBefore(Date at, ObjectReader reader) throws Exception {
-        long atSeconds = at.getTime() / 1000L;
-        RevWalk walk = new RevWalk(reader);
+        // The index catches up under its own lock. A commit made by Tardis meanwhile may be added by either the
+        // catch-up or the commit, but not twice, so there is no need to wait for the store lock
+        if (!commitIndex.isAt(git.getRepository().resolve(Constants.HEAD))) {
+            int added = commitIndex.catchUp(git.getRepository());
+            if (added > 0) LOG.warn("Added {} commits made outside of Tardis to the commit index", added);
+        }
 
-        try {
-            walk.markStart(walk.parseCommit(resolveObjectId("HEAD", reader)));
+        ObjectId found = commitIndex.findCommitBefore(at.getTime() / 1000L);
+        if (found == null) return getInitialCommit(reader);
 
-            for (RevCommit commit : walk) {
-                if (commit.getCommitTime() <= atSeconds) return commit;
-            }
-        } finally {
-            walk.dispose();
+        try (RevWalk walk = new RevWalk(reader)) {
+            return walk.parseCommit(found);
         }
-        return getInitialCommit(reader);
     }
 
     private RevCommit getInitialCommit(ObjectReader reader) throws Exception {
@@ -219,17 +579,28 @@ class SnapshotStore {
     }
 
     private ObjectId resolveObjectId(Object revision, ObjectReader reader) throws Exception {
-        if (revision instanceof String) return git.getRepository().resolve((String) revision);
+        if (revision instanceof String) {
+            ObjectId id = git.getRepository().resolve((String) revision);
+            if (id == null) throw new IllegalArgumentException("Unknown revision " + revision);
+            return id;
+        }
         if (revision instanceof Date) return getCommitBefore((Date) revision, reader).getId();
         throw new IllegalArgumentException("Revision must be either String or Date");
     }
 
     public Properties garbageCollect() {
         GarbageCollectCommand gc = git.gc();
+        long start = System.nanoTime();
         try {
             return gc.call();
         } catch (GitAPIException e) {
             throw new RuntimeException(e);
+        } finally {
+            metrics.timer(TardisMetrics.STORE_GC, Tags.empty()).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
+
+    void setMetrics(TardisMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
@@ -1,14 +1,33 @@
 package no.kommune.bergen.tardis;
 
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class Table {
+    static final String PARTITION_PLACEHOLDER = "{partition}";
+    static final String CHANGES_PLACEHOLDER = "{changes}";
+
     private List<String> primaryKeys;
     private String query;
     private String name;
     private String dataSourceName;
 
+    // Override the defaults of the data source when set
+    private Integer fetchSize;
+    private Integer queryTimeout;
+    private Boolean readOnly;
+
+    // Splits the export into key ranges that are exported in parallel, see TablePartitioner
+    private String partitionColumn;
+    private List<String> partitionBoundaries = new ArrayList<>();
+    private int partitions = 0;
+
+    // Exports only the rows changed since the last export, see IncrementalSnapshotMerge
+    private String changeTrackingColumn;
+    private String keyQuery;
+    private int fullExportInterval = 24;
+
     public String getName() {
         return name;
     }
@@ -41,6 +60,89 @@ public class Table {
         this.dataSourceName = dataSourceName;
     }
 
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public Integer getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(Integer queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public Boolean getReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly(Boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public String getPartitionColumn() {
+        return partitionColumn;
+    }
+
+    public void setPartitionColumn(String partitionColumn) {
+        this.partitionColumn = partitionColumn;
+    }
+
+    public List<String> getPartitionBoundaries() {
+        return partitionBoundaries;
+    }
+
+    public void setPartitionBoundaries(List<String> partitionBoundaries) {
+        this.partitionBoundaries = partitionBoundaries;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public String getChangeTrackingColumn() {
+        return changeTrackingColumn;
+    }
+
+    public void setChangeTrackingColumn(String changeTrackingColumn) {
+        this.changeTrackingColumn = changeTrackingColumn;
+    }
+
+    public String getKeyQuery() {
+        return keyQuery;
+    }
+
+    public void setKeyQuery(String keyQuery) {
+        this.keyQuery = keyQuery;
+    }
+
+    public int getFullExportInterval() {
+        return fullExportInterval;
+    }
+
+    public void setFullExportInterval(int fullExportInterval) {
+        this.fullExportInterval = fullExportInterval;
+    }
+
+    /**
+     * Returns the query with the placeholders for partitions and changes, if any, matching all rows.
+     */
+    public String getFullQuery() {
+        return getQuery().replace(PARTITION_PLACEHOLDER, "1 = 1").replace(CHANGES_PLACEHOLDER, "1 = 1");
+    }
+
+    public String getHighWaterMarkFilename() {
+        return getDataSourceName() + "." + getName() + ".hwm";
+    }
+
     public String getFilename() {
         return getDataSourceName() + "." + getName() + ".txt";
     }
@@ -0,0 +1,153 @@
+package no.kommune.bergen.tardis;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the query of a table into key ranges on its partition column. The partition column is the first primary key
+ * column, so the partitions exported one after the other are in primary key order, just like the whole query.
+ */
+class TablePartitioner {
+
+    /**
+     * Returns the partitions of the table, in key order. Boundaries are taken from the configuration, or computed
+     * from the minimum and maximum of a numeric partition column. Returns a single partition if there is nothing to
+     * split.
+     */
+    List<Partition> getPartitions(Table table, Connection conn) throws SQLException {
+        String column = table.getPartitionColumn();
+        validate(table);
+
+        List<Object> boundaries = table.getPartitionBoundaries().isEmpty()
+                ? computeBoundaries(table, conn)
+                : parseBoundaries(table.getPartitionBoundaries(), getColumnType(table, conn));
+        if (boundaries.isEmpty()) {
+            return Collections.singletonList(new Partition(table.getFullQuery(), Collections.emptyList()));
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        partitions.add(partition(table, column + " < ?", boundaries.get(0)));
+        for (int i = 1; i < boundaries.size(); i++) {
+            partitions.add(partition(table, column + " >= ? and " + column + " < ?", boundaries.get(i - 1), boundaries.get(i)));
+        }
+        partitions.add(partition(table, column + " >= ?", boundaries.get(boundaries.size() - 1)));
+        return partitions;
+    }
+
+    private void validate(Table table) {
+        List<String> primaryKeys = table.getPrimaryKeys();
+        if (primaryKeys == null || primaryKeys.isEmpty() || !primaryKeys.get(0).equalsIgnoreCase(table.getPartitionColumn())) {
+            throw new IllegalStateException("The partition column of " + table.getFilename() + " must be its first primary key column");
+        }
+        if (!table.getQuery().contains(Table.PARTITION_PLACEHOLDER)) {
+            throw new IllegalStateException("The query of " + table.getFilename() + " must contain " + Table.PARTITION_PLACEHOLDER
+                    + " in its where clause to be partitioned");
+        }
+    }
+
+    private Partition partition(Table table, String condition, Object... parameters) {
+        String query = table.getQuery().replace(Table.CHANGES_PLACEHOLDER, "1 = 1").replace(Table.PARTITION_PLACEHOLDER, "(" + condition + ")");
+        return new Partition(query, List.of(parameters));
+    }
+
+    /**
+     * Boundaries are bound with the type of the partition column, so that the database splits the rows in the same
+     * order as the query sorts them. On a character column, "5" must sort "10" before it, not after.
+     */
+    private List<Object> parseBoundaries(List<String> boundaries, int columnType) {
+        List<Object> parsed = new ArrayList<>();
+        for (String boundary : boundaries) {
+            parsed.add(isNumeric(columnType) ? new BigDecimal(boundary.trim()) : boundary);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the JDBC type of the partition column, read from the metadata of the query matching no rows.
+     */
+    private int getColumnType(Table table, Connection conn) throws SQLException {
+        String sql = table.getQuery().replace(Table.CHANGES_PLACEHOLDER, "1 = 1").replace(Table.PARTITION_PLACEHOLDER, "1 = 0");
+        try (PreparedStatement statement = conn.prepareStatement(sql); ResultSet resultSet = statement.executeQuery()) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (metaData.getColumnName(i).equalsIgnoreCase(table.getPartitionColumn())) return metaData.getColumnType(i);
+            }
+        }
+        throw new IllegalStateException("The partition column " + table.getPartitionColumn() + " is missing from the query of " + table.getFilename());
+    }
+
+    private static boolean isNumeric(int columnType) {
+        switch (columnType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private List<Object> computeBoundaries(Table table, Connection conn) throws SQLException {
+        int partitions = table.getPartitions();
+        if (partitions < 2) return Collections.emptyList();
+
+        if (!isNumeric(getColumnType(table, conn))) {
+            throw new IllegalStateException("The partition column " + table.getPartitionColumn() + " of " + table.getFilename()
+                    + " is not numeric, so its ranges cannot be computed from partitions. Set partitionBoundaries instead");
+        }
+        String column = table.getPartitionColumn();
+        String sql = "select min(" + column + "), max(" + column + ") from (" + table.getFullQuery() + ") tardis_range";
+        BigDecimal min, max;
+        try (PreparedStatement statement = conn.prepareStatement(sql); ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            min = resultSet.getBigDecimal(1);
+            max = resultSet.getBigDecimal(2);
+        }
+        if (min == null || max == null || min.compareTo(max) >= 0) return Collections.emptyList();
+
+        boolean integral = min.stripTrailingZeros().scale() <= 0 && max.stripTrailingZeros().scale() <= 0;
+        BigDecimal step = max.subtract(min).divide(BigDecimal.valueOf(partitions), 10, RoundingMode.HALF_UP);
+        List<Object> boundaries = new ArrayList<>();
+        for (int i = 1; i < partitions; i++) {
+            BigDecimal boundary = min.add(step.multiply(BigDecimal.valueOf(i)));
+            if (integral) boundary = boundary.setScale(0, RoundingMode.CEILING);
+            if (boundaries.isEmpty() || boundary.compareTo((BigDecimal) boundaries.get(boundaries.size() - 1)) > 0) {
+                boundaries.add(boundary);
+            }
+        }
+        return boundaries;
+    }
+
+    static class Partition {
+        private final String query;
+        private final List<Object> parameters;
+
+        Partition(String query, List<Object> parameters) {
+            this.query = query;
+            this.parameters = parameters;
+        }
+
+        String getQuery() {
+            return query;
+        }
+
+        List<Object> getParameters() {
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package no.kommune.bergen.tardis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of the configured tables and data sources, indexed by name. A new registry replaces the old one
+ * when the configuration is reloaded, so readers always see a consistent configuration without locking.
+ */
+class TableRegistry {
+
+    private final Map<String, Map<String, Table>> tables;
+    private final Map<String, List<Table>> tableLists;
+    private final Map<String, TardisConfiguration.DataSourceConfig> dataSourceConfigs;
+    private final List<TardisConfiguration.DataSourceConfig> dataSources;
+
+    TableRegistry(List<Table> tables, List<TardisConfiguration.DataSourceConfig> dataSources) {
+        Map<String, Map<String, Table>> tablesByDataSource = new LinkedHashMap<>();
+        for (Table table : tables) {
+            tablesByDataSource.computeIfAbsent(table.getDataSourceName(), name -> new LinkedHashMap<>())
+                    .putIfAbsent(table.getName(), table);
+        }
+        Map<String, Map<String, Table>> indexedTables = new LinkedHashMap<>();
+        Map<String, List<Table>> indexedTableLists = new LinkedHashMap<>();
+        tablesByDataSource.forEach((dataSourceName, byName) -> {
+            indexedTables.put(dataSourceName, Collections.unmodifiableMap(byName));
+            indexedTableLists.put(dataSourceName, Collections.unmodifiableList(new ArrayList<>(byName.values())));
+        });
+        this.tables = Collections.unmodifiableMap(indexedTables);
+        this.tableLists = Collections.unmodifiableMap(indexedTableLists);
+
+        Map<String, TardisConfiguration.DataSourceConfig> configs = new LinkedHashMap<>();
+        for (TardisConfiguration.DataSourceConfig config : dataSources) {
+            configs.putIfAbsent(config.getName(), config);
+        }
+        this.dataSourceConfigs = Collections.unmodifiableMap(configs);
+        this.dataSources = Collections.unmodifiableList(new ArrayList<>(dataSources));
+    }
+
+    Table getTable(String dataSourceName, String tableName) {
+        Map<String, Table> byName = tables.get(dataSourceName);
+        return byName == null ? null : byName.get(tableName);
+    }
+
+    List<Table> getTables(String dataSourceName) {
+        return tableLists.getOrDefault(dataSourceName, Collections.emptyList());
+    }
+
+    List<Table> getTables() {
+        List<Table> result = new ArrayList<>();
+        tableLists.values().forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * Returns the names of the data sources that have tables.
+     */
+    Set<String> getDataSourceNames() {
+        return tables.keySet();
+    }
+
+    TardisConfiguration.DataSourceConfig getDataSourceConfig(String dataSourceName) {
+        return dataSourceConfigs.get(dataSourceName);
+    }
+
+    List<TardisConfiguration.DataSourceConfig> getDataSources() {
+        return dataSources;
+    }
+}
@@ -0,0 +1,19 @@
+package no.kommune.bergen.tardis;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the tables and data sources have been reloaded from the configuration file.
+ */
+public class TableRegistryReloadedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    TableRegistryReloadedEvent(TableRegistry registry) {
+        super(registry);
+    }
+
+    TableRegistry getRegistry() {
+        return (TableRegistry) getSource();
+    }
+}
@@ -0,0 +1,154 @@
+package no.kommune.bergen.tardis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.bind.PropertySourcesPlaceholdersResolver;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.Profiles;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reloads the tables and data sources from the configuration file, either on request or when the file has changed.
+ * Only the tables and data sources are reloaded, other settings still need a restart.
+ */
+@Component
+public class TableRegistryReloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TableRegistryReloader.class);
+
+    @Autowired
+    private TardisConfiguration configuration;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private ConfigurableEnvironment environment;
+
+    private long lastModified = -1;
+
+    public void setConfiguration(TardisConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    void setEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    void setEnvironment(ConfigurableEnvironment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Reloads the configuration file if it has been modified since it was last seen. Pools dropped by an earlier
+     * reload are closed here once they are no longer in use.
+     */
+    public synchronized void reloadIfModified() {
+        configuration.closeRetiredPools();
+        File file = new File(configuration.getConfigFile());
+        long modified = file.lastModified();
+        if (lastModified == -1) {
+            lastModified = modified;
+            return;
+        }
+        if (modified == 0 || modified == lastModified) return;
+
+        lastModified = modified;
+        try {
+            reload();
+        } catch (Exception e) {
+            LOG.error("Could not reload " + file + ", keeping the current configuration", e);
+        }
+    }
+
+    public synchronized TableRegistry reload() throws IOException {
+        File file = new File(configuration.getConfigFile());
+        if (!file.isFile()) {
+            throw new IllegalStateException("Cannot reload the configuration, " + file + " does not exist");
+        }
+        lastModified = file.lastModified();
+
+        MutablePropertySources propertySources = replaceConfigFile(file, loadDocuments(file));
+        Binder binder = new Binder(ConfigurationPropertySources.from(propertySources),
+                new PropertySourcesPlaceholdersResolver(propertySources));
+        TardisConfiguration reloaded = binder.bind("tardis", TardisConfiguration.class).orElseGet(TardisConfiguration::new);
+
+        TableRegistry registry = configuration.reload(new ArrayList<>(reloaded.getTables()), new ArrayList<>(reloaded.getDataSources()));
+        LOG.info("Reloaded " + file + ": " + registry.getDataSources().size() + " data sources, "
+                + registry.getTables().size() + " tables");
+        eventPublisher.publishEvent(new TableRegistryReloadedEvent(registry));
+        return registry;
+    }
+
+    /**
+     * Returns the property sources of the environment with the documents of the configuration file in place of the
+     * ones read at startup, so that environment variables and command line arguments still override the file. When
+     * the file was not read at startup, the documents go after the environment variables.
+     */
+    private MutablePropertySources replaceConfigFile(File file, List<PropertySource<?>> documents) {
+        MutablePropertySources propertySources = new MutablePropertySources(environment.getPropertySources());
+        List<String> fromFile = new ArrayList<>();
+        for (PropertySource<?> propertySource : propertySources) {
+            if (isFrom(propertySource, file)) fromFile.add(propertySource.getName());
+        }
+
+        String previous = StandardEnvironment.SYSTEM_ENVIRONMENT_PROPERTY_SOURCE_NAME;
+        for (PropertySource<?> document : documents) {
+            if (!fromFile.isEmpty()) {
+                propertySources.addBefore(fromFile.get(0), document);
+            } else if (propertySources.contains(previous)) {
+                propertySources.addAfter(previous, document);
+                previous = document.getName();
+            } else {
+                propertySources.addLast(document);
+            }
+        }
+        fromFile.forEach(propertySources::remove);
+        return propertySources;
+    }
+
+    /**
+     * Tells whether the property source was read from the file. Spring Boot names the sources of config files after
+     * their resource, which is "file [absolute path]" for files.
+     */
+    private static boolean isFrom(PropertySource<?> propertySource, File file) {
+        if (propertySource == null) return false;
+        String name = propertySource.getName();
+        int start = name.indexOf("file [");
+        int end = name.indexOf(']', start + 1);
+        if (start < 0 || end < 0) return false;
+        File source = new File(name.substring(start + "file [".length(), end));
+        return source.getAbsoluteFile().toPath().normalize().equals(file.getAbsoluteFile().toPath().normalize());
+    }
+
+    /**
+     * Returns the documents of the yaml file that apply to the active profiles, with the last one first since later
+     * documents override earlier ones.
+     */
+    private List<PropertySource<?>> loadDocuments(File file) throws IOException {
+        List<PropertySource<?>> documents = new ArrayList<>();
+        for (PropertySource<?> document : new YamlPropertySourceLoader().load(file.getName(), new FileSystemResource(file))) {
+            Object profiles = document.getProperty("spring.config.activate.on-profile");
+            if (profiles == null || environment.acceptsProfiles(Profiles.of(profiles.toString()))) {
+                documents.add(document);
+            }
+        }
+        Collections.reverse(documents);
+        return documents;
+    }
+}
@@ -1,13 +1,26 @@
 package no.kommune.bergen.tardis;
 
+import io.micrometer.core.instrument.Tags;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class Tardis {
@@ -23,30 +36,137 @@ public class Tardis {
     @Autowired
     public TardisConfiguration configuration;
 
+    @Autowired
+    private TardisMetrics metrics = new TardisMetrics();
+
     private Logger log = LoggerFactory.getLogger(Tardis.class);
 
+    private final ExecutorService diffExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new CustomizableThreadFactory("tardis-diff-"));
+
     public String log() {
         return snapshotStore.log();
     }
 
+    public void log(Date since, Date until, String dataSource, int limit, Writer out) {
+        snapshotStore.log(since, until, dataSource, limit, out);
+    }
+
     public void exportAll() {
         exporter.exportAll();
     }
 
-    public void exportGroup(String group) {
-        exporter.exportDataSource(group);
+    public ExportReport exportGroup(String group) {
+        return exporter.exportDataSource(group);
     }
 
     public void getDiff(String dataSourceName, String tableName, String fromRevision, String toRevision, OutputStream out) {
-        Table table = configuration.getTable(dataSourceName, tableName);
-        assertTableNotNull(dataSourceName, tableName, table);
-        changeLogCreator.getDiff(table.getFilename(), table.getPrimaryKeys(), fromRevision, toRevision, out);
+        getDiff(dataSourceName, tableName, resolve(dataSourceName, tableName, fromRevision, toRevision), ChangeLogFormat.NDJSON, out);
     }
 
     public void getDiff(String dataSourceName, String tableName, Date fromDate, Date toDate, OutputStream out) {
+        getDiff(dataSourceName, tableName, resolve(dataSourceName, tableName, fromDate, toDate), ChangeLogFormat.NDJSON, out);
+    }
+
+    /**
+     * Resolves the requested revisions of a table to commits and snapshot blobs. A revision is either a Date or a
+     * revision string understood by git.
+     */
+    SnapshotRange resolve(String dataSourceName, String tableName, Object fromRevision, Object toRevision) {
+        Table table = getTable(dataSourceName, tableName);
+        long start = System.nanoTime();
+        try {
+            return snapshotStore.resolve(table.getFilename(), fromRevision, toRevision);
+        } finally {
+            metrics.timer(TardisMetrics.DIFF_RESOLVE, TardisMetrics.tags(dataSourceName, tableName)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Writes the change log of the range to out. The time spent writing to out is recorded apart from the time of
+     * the whole diff, since the diff streams its changes straight to out as they are found.
+     */
+    void getDiff(String dataSourceName, String tableName, SnapshotRange range, ChangeLogFormat format, OutputStream out) {
+        Table table = getTable(dataSourceName, tableName);
+        Tags tags = TardisMetrics.tags(dataSourceName, tableName);
+        TardisMetrics.WriteMeteringOutputStream meteredOut = metrics.meterWrites(out);
+        long start = System.nanoTime();
+        try {
+            changeLogCreator.writeChangeLog(range, table.getPrimaryKeys(), format, meteredOut);
+        } finally {
+            metrics.timer(TardisMetrics.DIFF, tags.and("format", format.name().toLowerCase())).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            meteredOut.record(metrics, tags);
+        }
+    }
+
+    /**
+     * Resolves the requested revisions once for all tables of a data source, and returns the ranges of the tables
+     * whose snapshots differ between them.
+     */
+    Map<Table, SnapshotRange> resolveChanged(String dataSourceName, Object fromRevision, Object toRevision) {
+        if (!hasDataSource(dataSourceName))
+            throw new IllegalArgumentException("Data source named " + dataSourceName + " not found");
+        List<Table> tables = configuration.getTables(dataSourceName);
+
+        Map<String, Table> tablesByFilename = new LinkedHashMap<>();
+        tables.forEach(table -> tablesByFilename.put(table.getFilename(), table));
+        long start = System.nanoTime();
+        try {
+            Map<Table, SnapshotRange> ranges = new LinkedHashMap<>();
+            snapshotStore.resolveChanged(tablesByFilename.keySet(), fromRevision, toRevision)
+                    .forEach((filename, range) -> ranges.put(tablesByFilename.get(filename), range));
+            return ranges;
+        } finally {
+            metrics.timer(TardisMetrics.DIFF_RESOLVE, TardisMetrics.tags(dataSourceName, "*")).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Writes the change logs of several tables of a data source to out as one ndjson stream, where each change has
+     * the name of its table. The tables are diffed in parallel. A table that fails gets an error line instead of
+     * the rest of its changes, since the response is already under way.
+     */
+    void getDiffs(String dataSourceName, Map<Table, SnapshotRange> ranges, OutputStream out) throws IOException, InterruptedException {
+        Map<Table, Future<?>> futures = new LinkedHashMap<>();
+        try (ChangeLogMultiplexer multiplexer = new ChangeLogMultiplexer(out)) {
+            ranges.forEach((table, range) -> futures.put(table, diffExecutor.submit(() -> {
+                // Not closed if the diff fails, so that a half written change is dropped
+                OutputStream tableOut = multiplexer.open(table.getName());
+                getDiff(dataSourceName, table.getName(), range, ChangeLogFormat.NDJSON, tableOut);
+                tableOut.close();
+                return null;
+            })));
+
+            for (Map.Entry<Table, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error("Couldn't get changes for table " + entry.getKey().getName() + " in data source " + dataSourceName, e.getCause());
+                    multiplexer.writeError(entry.getKey().getName(), e.getCause().getMessage());
+                }
+            }
+        } finally {
+            // Stops the diffs that are still running when the client has gone away or the thread is interrupted
+            futures.values().forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * Tells whether the data source is configured, with or without tables.
+     */
+    boolean hasDataSource(String dataSourceName) {
+        return !configuration.getTables(dataSourceName).isEmpty() || configuration.getDataSourceConfig(dataSourceName) != null;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        diffExecutor.shutdownNow();
+    }
+
+    public Table getTable(String dataSourceName, String tableName) {
         Table table = configuration.getTable(dataSourceName, tableName);
         assertTableNotNull(dataSourceName, tableName, table);
-        changeLogCreator.getDiff(table.getFilename(), table.getPrimaryKeys(), fromDate, toDate, out);
+        return table;
     }
 
     private void assertTableNotNull(String dataSourceName, String tableName, Table table) {
@@ -58,6 +178,10 @@ public class Tardis {
         this.configuration = configuration;
     }
 
+    public void setMetrics(TardisMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void setExporter(DatabaseSnapshotExporter exporter) {
         this.exporter = exporter;
     }
@@ -66,6 +190,10 @@ public class Tardis {
         this.changeLogCreator = changeLogCreator;
     }
 
+    void setSnapshotStore(SnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+    }
+
     public Properties optimizeStorage() {
         return snapshotStore.garbageCollect();
     }
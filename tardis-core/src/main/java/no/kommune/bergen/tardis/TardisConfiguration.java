@@ -1,13 +1,19 @@
 package no.kommune.bergen.tardis;
 
+import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 @ConfigurationProperties(prefix = "tardis")
@@ -17,9 +23,25 @@ public class TardisConfiguration {
     private String statusDirectory = new File(System.getProperty("user.dir"), "status").getAbsolutePath();
     private String optimizeCron = null;
     private boolean cron = true;
+    private boolean bareRepository = false;
+    private int schedulerThreads = 4;
+    private int maxConcurrentExports = 0;
+    private OverlapPolicy overlapPolicy = OverlapPolicy.SKIP;
+    private DiffEngine diffEngine = DiffEngine.MERGE_JOIN;
+    private DiffCacheConfig diffCache = new DiffCacheConfig();
+
+    private String configFile = new File(System.getProperty("user.dir"), "application.yml").getAbsolutePath();
+    private long configReloadInterval = 0;
+    private long streamTimeout = 0;
+    private long streamHeartbeatInterval = 30000;
+    private long streamSendTimeout = 30000;
+    private int streamThreads = 8;
 
     private List<Table> tables = new ArrayList<>();
-    private Map<String, DataSource> dataSourceMap = new HashMap<>();
+    private final AtomicReference<TableRegistry> registry = new AtomicReference<>();
+    private final Map<String, DataSource> dataSourceMap = new ConcurrentHashMap<>();
+    private final Map<PoolKey, HikariDataSource> pools = new ConcurrentHashMap<>();
+    private final List<HikariDataSource> retiredPools = new CopyOnWriteArrayList<>();
     private List<DataSourceConfig> dataSources = new ArrayList<>();
 
     public String getWorkingDirectory() {
@@ -44,64 +66,180 @@ public class TardisConfiguration {
 
     public void setTables(List<Table> tables) {
         this.tables = tables;
+        registry.set(null);
     }
 
     public Set<String> getDataSourceNames() {
-        Set<String> result = new HashSet<>();
-        for (Table table : tables) {
-            result.add(table.getDataSourceName());
-        }
-        return result;
+        return getRegistry().getDataSourceNames();
     }
 
     public List<Table> getTables(String dataSourceName) {
-        List<Table> result = new ArrayList<>();
-        for (Table table : tables) {
-            if (table.getDataSourceName().equals(dataSourceName))
-                result.add(table);
+        return getRegistry().getTables(dataSourceName);
+    }
+
+    /**
+     * Returns the current registry of tables and data sources. It is built from the bound configuration the first
+     * time, and replaced by reload.
+     */
+    TableRegistry getRegistry() {
+        TableRegistry current = registry.get();
+        if (current == null) {
+            current = new TableRegistry(tables == null ? Collections.emptyList() : tables, dataSources);
+            if (!registry.compareAndSet(null, current)) return getRegistry();
         }
-        return result;
+        return current;
     }
 
-    public DataSource getDataSource(String dataSourceName) {
-        if (dataSourceMap.containsKey(dataSourceName)) return dataSourceMap.get(dataSourceName);
+    /**
+     * Replaces the tables and data sources. Data sources that now connect differently get a new pool the next time
+     * they are used, in-flight exports keep the connections they have. Pools that are still used get the new size and
+     * idle settings, and pools that are no longer used are closed once their connections have been returned.
+     */
+    synchronized TableRegistry reload(List<Table> tables, List<DataSourceConfig> dataSources) {
+        TableRegistry previous = getRegistry();
+        TableRegistry reloaded = new TableRegistry(tables, dataSources);
+        this.tables = tables;
+        this.dataSources = dataSources;
+        registry.set(reloaded);
 
-        for (DataSourceConfig config : dataSources) {
-            if (config.getName().equals(dataSourceName)) {
-                createDataSource(config);
+        for (DataSourceConfig config : previous.getDataSources()) {
+            DataSourceConfig newConfig = reloaded.getDataSourceConfig(config.getName());
+            if (newConfig == null || !new PoolKey(config).equals(new PoolKey(newConfig))) {
+                dataSourceMap.remove(config.getName());
             }
         }
-        return dataSourceMap.get(dataSourceName);
+
+        for (Map.Entry<PoolKey, HikariDataSource> pool : pools.entrySet()) {
+            List<DataSourceConfig> configs = getConfigs(pool.getKey());
+            if (configs.isEmpty()) {
+                pools.remove(pool.getKey());
+                retiredPools.add(pool.getValue());
+            } else {
+                HikariConfigMXBean poolConfig = pool.getValue().getHikariConfigMXBean();
+                poolConfig.setMaximumPoolSize(configs.stream().mapToInt(DataSourceConfig::getMaximumPoolSize).max().getAsInt());
+                poolConfig.setMinimumIdle(configs.stream().mapToInt(DataSourceConfig::getMinimumIdle).max().getAsInt());
+                poolConfig.setIdleTimeout(configs.stream().mapToLong(DataSourceConfig::getIdleTimeout).max().getAsLong());
+            }
+        }
+        closeRetiredPools();
+        return reloaded;
+    }
+
+    /**
+     * Closes the pools that were dropped by a reload and have no connections in use any more. Closing a pool with
+     * connections in use would abort the exports using them.
+     */
+    void closeRetiredPools() {
+        retiredPools.removeIf(pool -> {
+            HikariPoolMXBean poolBean = pool.getHikariPoolMXBean();
+            if (poolBean != null && poolBean.getActiveConnections() > 0) return false;
+            pool.close();
+            return true;
+        });
+    }
+
+    public DataSource getDataSource(String dataSourceName) {
+        DataSource dataSource = dataSourceMap.get(dataSourceName);
+        if (dataSource != null) return dataSource;
+
+        DataSourceConfig config = getDataSourceConfig(dataSourceName);
+        if (config == null) return null;
+        return dataSourceMap.computeIfAbsent(dataSourceName, name -> pools.computeIfAbsent(new PoolKey(config), this::createPool));
+    }
+
+    /**
+     * Returns how many connections one table export of the data source may use at once: the size of its pool, less
+     * one for every other export that may run on the pool at the same time. Data sources not pooled by Tardis are
+     * not limited.
+     */
+    public int getConnectionsPerExport(String dataSourceName) {
+        DataSource dataSource = getDataSource(dataSourceName);
+        DataSourceConfig config = getDataSourceConfig(dataSourceName);
+        if (!(dataSource instanceof HikariDataSource) || config == null) return Integer.MAX_VALUE;
+        int exports = getConfigs(new PoolKey(config)).stream().mapToInt(DataSourceConfig::getExportThreads).sum();
+        return Math.max(1, ((HikariDataSource) dataSource).getMaximumPoolSize() - (exports - 1));
     }
 
     public List<DataSourceConfig> getDataSources() {
-        return dataSources;
+        return getRegistry().getDataSources();
+    }
+
+    public DataSourceConfig getDataSourceConfig(String dataSourceName) {
+        return getRegistry().getDataSourceConfig(dataSourceName);
     }
 
     public void setDataSources(List<DataSourceConfig> dataSources) {
         this.dataSources = dataSources;
+        registry.set(null);
     }
 
-    private void createDataSource(DataSourceConfig config) {
+    /**
+     * Creates one pool for all the data sources that connect to the same database as the same user. The pool gets the
+     * largest size and idle settings of those data sources.
+     */
+    private HikariDataSource createPool(PoolKey key) {
+        List<DataSourceConfig> configs = getConfigs(key);
+        DataSourceConfig first = configs.get(0);
+
         HikariDataSource dataSource = new HikariDataSource();
-        dataSource.setJdbcUrl(config.getUrl());
-        dataSource.setUsername(config.getUsername());
-        dataSource.setPassword(config.getPassword());
+        dataSource.setPoolName("tardis-" + first.getName());
+        dataSource.setJdbcUrl(first.getUrl());
+        dataSource.setUsername(first.getUsername());
+        dataSource.setPassword(first.getPassword());
         dataSource.setAutoCommit(false);
+        dataSource.setMaximumPoolSize(configs.stream().mapToInt(DataSourceConfig::getMaximumPoolSize).max().getAsInt());
+        dataSource.setMinimumIdle(configs.stream().mapToInt(DataSourceConfig::getMinimumIdle).max().getAsInt());
+        dataSource.setIdleTimeout(configs.stream().mapToLong(DataSourceConfig::getIdleTimeout).max().getAsLong());
 
-        for (Map.Entry<String, Object> property : config.getProperties().entrySet()) {
+        for (Map.Entry<String, Object> property : first.getProperties().entrySet()) {
             dataSource.addDataSourceProperty(property.getKey(), property.getValue());
         }
 
-        dataSourceMap.put(config.getName(), dataSource);
+        return dataSource;
     }
 
-    public Table getTable(String dataSourceName, String tableName) {
-        for (Table table : tables) {
-            if (table.getDataSourceName().equals(dataSourceName) && table.getName().equals(tableName))
-                return table;
+    private List<DataSourceConfig> getConfigs(PoolKey key) {
+        List<DataSourceConfig> configs = new ArrayList<>();
+        for (DataSourceConfig config : getDataSources()) {
+            if (key.equals(new PoolKey(config))) configs.add(config);
+        }
+        return configs;
+    }
+
+    @PreDestroy
+    public void closePools() {
+        pools.values().forEach(HikariDataSource::close);
+        retiredPools.forEach(HikariDataSource::close);
+    }
+
+    private static class PoolKey {
+        private final String url, username, password;
+        private final Map<String, Object> properties;
+
+        PoolKey(DataSourceConfig config) {
+            url = config.getUrl();
+            username = config.getUsername();
+            password = config.getPassword();
+            properties = new HashMap<>(config.getProperties());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PoolKey)) return false;
+            PoolKey key = (PoolKey) o;
+            return Objects.equals(url, key.url) && Objects.equals(username, key.username)
+                    && Objects.equals(password, key.password) && properties.equals(key.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, properties);
         }
-        return null;
+    }
+
+    public Table getTable(String dataSourceName, String tableName) {
+        return getRegistry().getTable(dataSourceName, tableName);
     }
 
     public void addDatasource(String dataSourceName, DataSource dataSource) {
@@ -111,6 +249,63 @@ public class TardisConfiguration {
     public void addTable(Table table) {
         if (null == tables) tables = new ArrayList<>();
         tables.add(table);
+        registry.set(null);
+    }
+
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+
+    public long getConfigReloadInterval() {
+        return configReloadInterval;
+    }
+
+    public void setConfigReloadInterval(long configReloadInterval) {
+        this.configReloadInterval = configReloadInterval;
+    }
+
+    public long getStreamTimeout() {
+        return streamTimeout;
+    }
+
+    public void setStreamTimeout(long streamTimeout) {
+        this.streamTimeout = streamTimeout;
+    }
+
+    public long getStreamHeartbeatInterval() {
+        return streamHeartbeatInterval;
+    }
+
+    public void setStreamHeartbeatInterval(long streamHeartbeatInterval) {
+        this.streamHeartbeatInterval = streamHeartbeatInterval;
+    }
+
+    public long getStreamSendTimeout() {
+        return streamSendTimeout;
+    }
+
+    public void setStreamSendTimeout(long streamSendTimeout) {
+        this.streamSendTimeout = streamSendTimeout;
+    }
+
+    public int getStreamThreads() {
+        return streamThreads;
+    }
+
+    public void setStreamThreads(int streamThreads) {
+        this.streamThreads = streamThreads;
+    }
+
+    public boolean isBareRepository() {
+        return bareRepository;
+    }
+
+    public void setBareRepository(boolean bareRepository) {
+        this.bareRepository = bareRepository;
     }
 
     public boolean isCron() {
@@ -129,6 +324,109 @@ public class TardisConfiguration {
         this.optimizeCron = optimizeCron;
     }
 
+    public int getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    public void setSchedulerThreads(int schedulerThreads) {
+        this.schedulerThreads = schedulerThreads;
+    }
+
+    public int getMaxConcurrentExports() {
+        return maxConcurrentExports;
+    }
+
+    public void setMaxConcurrentExports(int maxConcurrentExports) {
+        this.maxConcurrentExports = maxConcurrentExports;
+    }
+
+    public OverlapPolicy getOverlapPolicy() {
+        return overlapPolicy;
+    }
+
+    public void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+        this.overlapPolicy = overlapPolicy;
+    }
+
+    public DiffEngine getDiffEngine() {
+        return diffEngine;
+    }
+
+    public void setDiffEngine(DiffEngine diffEngine) {
+        this.diffEngine = diffEngine;
+    }
+
+    public DiffCacheConfig getDiffCache() {
+        return diffCache;
+    }
+
+    public void setDiffCache(DiffCacheConfig diffCache) {
+        this.diffCache = diffCache;
+    }
+
+    /**
+     * How the changes between two snapshots are found.
+     */
+    public enum DiffEngine {
+        /** Read both snapshots from the object database and join them on the primary key. */
+        MERGE_JOIN,
+        /** Let git compute a line diff, and pair the removed and added lines by primary key. */
+        GIT
+    }
+
+    /**
+     * What to do when a data source is due for export while its previous export is still running.
+     */
+    public enum OverlapPolicy {
+        /** Drop the new run. */
+        SKIP,
+        /** Run again as soon as the running export finishes. At most one run is kept waiting. */
+        QUEUE
+    }
+
+    public static class DiffCacheConfig {
+        private long maxHeapBytes = 64L * 1024 * 1024;
+        private int maxEntryBytes = 8 * 1024 * 1024;
+
+        /*
+         * The disk tier is only used when a directory is configured
+         */
+        private String directory;
+        private long maxDiskBytes = 1024L * 1024 * 1024;
+
+        public long getMaxHeapBytes() {
+            return maxHeapBytes;
+        }
+
+        public void setMaxHeapBytes(long maxHeapBytes) {
+            this.maxHeapBytes = maxHeapBytes;
+        }
+
+        public int getMaxEntryBytes() {
+            return maxEntryBytes;
+        }
+
+        public void setMaxEntryBytes(int maxEntryBytes) {
+            this.maxEntryBytes = maxEntryBytes;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getMaxDiskBytes() {
+            return maxDiskBytes;
+        }
+
+        public void setMaxDiskBytes(long maxDiskBytes) {
+            this.maxDiskBytes = maxDiskBytes;
+        }
+    }
+
     public static class DataSourceConfig {
         private String name, url, username, password, age;
 
@@ -145,6 +443,34 @@ public class TardisConfiguration {
         */
         private String cronExpression = "0  */5  *   *   *   *   *";
 
+        /*
+         * Number of tables exported concurrently, each on its own pooled connection. The snapshots are still staged
+         * and committed one at a time, so a run always ends up as a single commit.
+         */
+        private int exportThreads = 1;
+
+        /*
+         * Upper bound (in milliseconds) of a random delay added to every scheduled start, to spread out data sources
+         * that share a cron expression. Should be well below the interval of the cron expression.
+         */
+        private long startJitter = 0;
+
+        /*
+         * Connection pool settings. Data sources with the same url, username, password and properties share a pool,
+         * which gets the largest values among them. Idle connections are closed after idleTimeout milliseconds.
+         */
+        private int maximumPoolSize = 10;
+        private int minimumIdle = 0;
+        private long idleTimeout = 600000;
+
+        /*
+         * Defaults for the tables of this data source, see Table. 0 leaves the fetch size to the driver, and a query
+         * timeout (in seconds) of 0 means no timeout.
+         */
+        private int fetchSize = 0;
+        private int queryTimeout = 0;
+        private boolean readOnly = false;
+
         private Map<String, Object> properties = new HashMap<>();
 
         public String getName() {
@@ -202,5 +528,69 @@ public class TardisConfiguration {
         public void setAge(String age) {
             this.age = age;
         }
+
+        public int getExportThreads() {
+            return exportThreads;
+        }
+
+        public void setExportThreads(int exportThreads) {
+            this.exportThreads = exportThreads;
+        }
+
+        public long getStartJitter() {
+            return startJitter;
+        }
+
+        public void setStartJitter(long startJitter) {
+            this.startJitter = startJitter;
+        }
+
+        public int getMaximumPoolSize() {
+            return maximumPoolSize;
+        }
+
+        public void setMaximumPoolSize(int maximumPoolSize) {
+            this.maximumPoolSize = maximumPoolSize;
+        }
+
+        public int getMinimumIdle() {
+            return minimumIdle;
+        }
+
+        public void setMinimumIdle(int minimumIdle) {
+            this.minimumIdle = minimumIdle;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+        }
+
+        public int getQueryTimeout() {
+            return queryTimeout;
+        }
+
+        public void setQueryTimeout(int queryTimeout) {
+            this.queryTimeout = queryTimeout;
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        public void setReadOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
     }
 }
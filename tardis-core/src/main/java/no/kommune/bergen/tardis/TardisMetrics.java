@@ -0,0 +1,123 @@
+package no.kommune.bergen.tardis;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The meters of Tardis, tagged by data source and table. They are registered with the meter registry of the
+ * application, and show up on the actuator endpoint metrics. Without a registry, e.g. in tests, the meters do nothing.
+ */
+@Component
+public class TardisMetrics {
+
+    static final String EXPORT = "tardis.export";
+    static final String EXPORT_QUERY = "tardis.export.query";
+    static final String EXPORT_ROWS = "tardis.export.rows";
+    static final String EXPORT_THROUGHPUT = "tardis.export.throughput";
+    static final String EXPORT_BYTES = "tardis.export.bytes";
+    static final String STORE_ADD = "tardis.store.add";
+    static final String STORE_COMMIT = "tardis.store.commit";
+    static final String STORE_GC = "tardis.store.gc";
+    static final String DIFF_RESOLVE = "tardis.diff.resolve";
+    static final String DIFF = "tardis.diff";
+    static final String DIFF_WRITE = "tardis.diff.write";
+    static final String DIFF_BYTES = "tardis.diff.bytes";
+
+    private MeterRegistry registry = Metrics.globalRegistry;
+
+    @Autowired(required = false)
+    public void setMeterRegistry(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    MeterRegistry getMeterRegistry() {
+        return registry;
+    }
+
+    Timer timer(String name, Tags tags) {
+        return Timer.builder(name).tags(tags).register(registry);
+    }
+
+    Counter counter(String name, String baseUnit, Tags tags) {
+        return Counter.builder(name).baseUnit(baseUnit).tags(tags).register(registry);
+    }
+
+    DistributionSummary summary(String name, String baseUnit, Tags tags) {
+        return DistributionSummary.builder(name).baseUnit(baseUnit).tags(tags).register(registry);
+    }
+
+    static Tags tags(String dataSourceName, String tableName) {
+        return Tags.of("dataSource", dataSourceName, "table", tableName);
+    }
+
+    static Tags tags(String dataSourceName) {
+        return Tags.of("dataSource", dataSourceName);
+    }
+
+    /**
+     * Wraps out in a stream that counts the bytes written to it and the time spent waiting for it.
+     */
+    WriteMeteringOutputStream meterWrites(OutputStream out) {
+        return new WriteMeteringOutputStream(out);
+    }
+
+    static class WriteMeteringOutputStream extends FilterOutputStream {
+
+        private long bytes;
+        private long nanos;
+
+        WriteMeteringOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.flush();
+            } finally {
+                out.close();
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        void record(TardisMetrics metrics, Tags tags) {
+            metrics.timer(DIFF_WRITE, tags).record(nanos, TimeUnit.NANOSECONDS);
+            metrics.counter(DIFF_BYTES, "bytes", tags).increment(bytes);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package no.kommune.bergen.tardis;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+public class ChangeFeedTest {
+
+    @TempDir
+    File workingDirectory;
+
+    private TardisFixture fixture;
+    private ChangeFeed changeFeed;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        fixture = new TardisFixture(workingDirectory);
+        changeFeed = new ChangeFeed();
+        changeFeed.setTardis(fixture.tardis);
+        changeFeed.setSnapshotStore(fixture.snapshotStore);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        changeFeed.shutdown();
+        fixture.close();
+    }
+
+    @Test
+    public void testThatSubscribersGetTheBacklogAndThenNewChanges() throws Exception {
+        fixture.tardis.exportGroup("hr");
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.tardis.exportGroup("hr");
+
+        CapturingEmitter t1 = new CapturingEmitter();
+        CapturingEmitter t2 = new CapturingEmitter();
+        changeFeed.subscribe("hr", "t1", "HEAD~1", t1);
+        changeFeed.subscribe("hr", "t2", null, t2);
+        Assertions.assertEquals("id:" + fixture.snapshotStore.getHead().name() + "\ndata:{\"changeType\": \"modify\", " +
+                "\"oldRecord\": {\"ID\": 1, \"NAME\": \"one\"}, \"newRecord\": {\"ID\": 1, \"NAME\": \"en\"}}\n\n", t1.next());
+
+        fixture.update("delete from t1 where id = 2");
+        fixture.update("delete from t1 where id = 3");
+        fixture.tardis.exportGroup("hr");
+        Assertions.assertEquals("id:" + fixture.snapshotStore.getHead().name() + "\n" +
+                "data:{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 2, \"NAME\": \"two\"}}\n" +
+                "data:{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 3, \"NAME\": \"three\"}}\n\n", t1.next());
+        Assertions.assertEquals(2, changeFeed.getSubscriberCount());
+
+        changeFeed.shutdown();
+        Assertions.assertTrue(t1.events.isEmpty());
+        Assertions.assertTrue(t2.events.isEmpty());
+    }
+
+    @Test
+    public void testThatLargeChangeLogsAreSentInSeveralEvents() throws Exception {
+        fixture.tardis.exportGroup("hr");
+        fixture.update("insert into t0 select x, 'name ' || x from system_range(4, 3003)");
+        fixture.tardis.exportGroup("hr");
+
+        CapturingEmitter t0 = new CapturingEmitter();
+        changeFeed.subscribe("hr", "t0", "HEAD~1", t0);
+        int events = 0;
+        int changes = 0;
+        String event;
+        do {
+            event = t0.next();
+            events++;
+            changes += event.split("data:").length - 1;
+            Assertions.assertTrue(event.length() < 2 * ChangeFeed.EVENT_SIZE, "Event of " + event.length() + " characters");
+        } while (!event.startsWith("id:"));
+
+        Assertions.assertEquals("id:" + fixture.snapshotStore.getHead().name(), event.substring(0, event.indexOf('\n')));
+        Assertions.assertTrue(events > 1);
+        Assertions.assertEquals(3000, changes);
+    }
+
+    @Test
+    public void testThatAStalledSubscriberIsDroppedWithoutHoldingUpTheOthers() throws Exception {
+        fixture.configuration.setStreamSendTimeout(200);
+        fixture.configuration.setStreamHeartbeatInterval(0);
+        changeFeed.setConfiguration(fixture.configuration);
+        fixture.tardis.exportGroup("hr");
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.tardis.exportGroup("hr");
+
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch failed = new CountDownLatch(1);
+        changeFeed.subscribe("hr", "t1", "HEAD~1", new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void completeWithError(Throwable e) {
+                failed.countDown();
+            }
+        });
+        CapturingEmitter t2 = new CapturingEmitter();
+        changeFeed.subscribe("hr", "t2", null, t2);
+        Assertions.assertTrue(sending.await(10, TimeUnit.SECONDS));
+        long stalledSince = System.nanoTime();
+
+        fixture.update("update t2 set name = 'to' where id = 2");
+        fixture.tardis.exportGroup("hr");
+        Assertions.assertTrue(t2.next().contains("\"NAME\": \"to\""));
+
+        // Lets the stalled send run past the send timeout
+        Thread.sleep(Math.max(0, 250 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stalledSince)));
+        changeFeed.dropStalledSubscribers();
+        Assertions.assertEquals(1, changeFeed.getSubscriberCount());
+        release.countDown();
+        Assertions.assertTrue(failed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testThatSubscribersAtTheSameCommitShareOneDiff() throws Exception {
+        TardisMetrics metrics = new TardisMetrics();
+        metrics.setMeterRegistry(new SimpleMeterRegistry());
+        fixture.tardis.setMetrics(metrics);
+        fixture.tardis.exportGroup("hr");
+
+        List<CapturingEmitter> emitters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CapturingEmitter emitter = new CapturingEmitter();
+            changeFeed.subscribe("hr", "t1", null, emitter);
+            emitters.add(emitter);
+        }
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.tardis.exportGroup("hr");
+
+        for (CapturingEmitter emitter : emitters) {
+            Assertions.assertTrue(emitter.next().startsWith("id:" + fixture.snapshotStore.getHead().name() + "\n"));
+        }
+        Assertions.assertEquals(1, metrics.getMeterRegistry().get(TardisMetrics.DIFF).tag("table", "t1").timer().count());
+    }
+
+    @Test
+    public void testThatAFailedDiffEndsTheSubscriptionWithoutAnId() throws Exception {
+        Tardis failingTardis = new Tardis() {
+            @Override
+            void getDiff(String dataSourceName, String tableName, SnapshotRange range, ChangeLogFormat format, OutputStream out) {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        out.write(("{\"changeType\": \"add\", \"newRecord\": {\"ID\": " + i + "}}\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new RuntimeException("Broken snapshot");
+            }
+        };
+        failingTardis.setConfiguration(fixture.configuration);
+        failingTardis.setSnapshotStore(fixture.snapshotStore);
+        changeFeed.setTardis(failingTardis);
+        fixture.tardis.exportGroup("hr");
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.tardis.exportGroup("hr");
+
+        CapturingEmitter t1 = new CapturingEmitter();
+        changeFeed.subscribe("hr", "t1", "HEAD~1", t1);
+        Throwable error = t1.errors.poll(10, TimeUnit.SECONDS);
+        failingTardis.shutdown();
+
+        Assertions.assertNotNull(error);
+        Assertions.assertEquals("Broken snapshot", error.getMessage());
+        Assertions.assertFalse(t1.events.stream().anyMatch(event -> event.startsWith("id:")), "An event has an id");
+        Assertions.assertEquals(0, changeFeed.getSubscriberCount());
+    }
+
+    /**
+     * Collects the events sent to a subscriber. Waiting on the queue takes the place of sleeping until they arrive.
+     */
+    private static class CapturingEmitter extends SseEmitter {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            StringBuilder event = new StringBuilder();
+            builder.build().forEach(data -> event.append(data.getData()));
+            events.add(event.toString());
+        }
+
+        @Override
+        public void completeWithError(Throwable e) {
+            errors.add(e);
+        }
+
+        String next() throws InterruptedException {
+            String event = events.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(event, "No event within 10 seconds");
+            return event;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package no.kommune.bergen.tardis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+public class ChangeLogCreatorTest {
+
+    private static final String FILENAME = "hr.emp.txt";
+
+    @TempDir
+    File workingDirectory;
+
+    private SnapshotStore snapshotStore;
+    private ChangeLogCreator changeLogCreator;
+
+    @BeforeEach
+    public void setUp() {
+        snapshotStore = new SnapshotStore();
+        snapshotStore.setWorkingDirectory(workingDirectory.getAbsolutePath());
+
+        changeLogCreator = new ChangeLogCreator();
+        changeLogCreator.setSnapshotStore(snapshotStore);
+    }
+
+    @Test
+    public void testThatAddedChangedAndDeletedRecordsAreReported() throws Exception {
+        commit("{\"ID\": 1, \"NAME\": \"one\"}",
+                "{\"ID\": 2, \"NAME\": \"two\"}",
+                "{\"ID\": 3, \"NAME\": \"three\"}",
+                "{\"ID\": 5, \"NAME\": \"five\"}");
+        commit("{\"ID\": 1, \"NAME\": \"one\"}",
+                "{\"ID\": 3, \"NAME\": \"tre\"}",
+                "{\"ID\": 4, \"NAME\": \"four\"}",
+                "{\"ID\": 5, \"NAME\": \"five\"}",
+                "{\"ID\": 6, \"NAME\": \"six\"}");
+
+        Assertions.assertEquals(
+                "{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 2, \"NAME\": \"two\"}}\n" +
+                "{\"changeType\": \"modify\", \"oldRecord\": {\"ID\": 3, \"NAME\": \"three\"}, \"newRecord\": {\"ID\": 3, \"NAME\": \"tre\"}}\n" +
+                "{\"changeType\": \"add\", \"newRecord\": {\"ID\": 4, \"NAME\": \"four\"}}\n" +
+                "{\"changeType\": \"add\", \"newRecord\": {\"ID\": 6, \"NAME\": \"six\"}}\n",
+                diff("HEAD~1", "HEAD", Collections.singletonList("ID")));
+    }
+
+    @Test
+    public void testThatCompositeKeysAreCompared() throws Exception {
+        commit("{\"A\": 1, \"B\": \"x\", \"V\": 1}",
+                "{\"A\": 1, \"B\": \"y\", \"V\": 1}");
+        commit("{\"A\": 1, \"B\": \"x\", \"V\": 2}",
+                "{\"A\": 2, \"B\": \"a\", \"V\": 1}");
+
+        Assertions.assertEquals(
+                "{\"changeType\": \"modify\", \"oldRecord\": {\"A\": 1, \"B\": \"x\", \"V\": 1}, \"newRecord\": {\"A\": 1, \"B\": \"x\", \"V\": 2}}\n" +
+                "{\"changeType\": \"delete\", \"oldRecord\": {\"A\": 1, \"B\": \"y\", \"V\": 1}}\n" +
+                "{\"changeType\": \"add\", \"newRecord\": {\"A\": 2, \"B\": \"a\", \"V\": 1}}\n",
+                diff("HEAD~1", "HEAD", Arrays.asList("A", "B")));
+    }
+
+    @Test
+    public void testThatChangesInSeparateHunksAreReported() throws Exception {
+        String[] before = new String[30];
+        String[] after = new String[30];
+        for (int i = 0; i < 30; i++) {
+            before[i] = "{\"ID\": " + i + ", \"NAME\": \"" + i + "\"}";
+            after[i] = before[i];
+        }
+        after[2] = "{\"ID\": 2, \"NAME\": \"two\"}";
+        after[27] = "{\"ID\": 28, \"NAME\": \"28\"}";
+        after[28] = "{\"ID\": 28, \"NAME\": \"28\"}";
+        commit(before);
+        commit(Arrays.copyOf(after, 28));
+
+        Assertions.assertEquals(
+                "{\"changeType\": \"modify\", \"oldRecord\": {\"ID\": 2, \"NAME\": \"2\"}, \"newRecord\": {\"ID\": 2, \"NAME\": \"two\"}}\n" +
+                "{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 27, \"NAME\": \"27\"}}\n" +
+                "{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 29, \"NAME\": \"29\"}}\n",
+                diff("HEAD~1", "HEAD", Collections.singletonList("ID")));
+    }
+
+    @Test
+    public void testThatAllRecordsAreAddedComparedToTheInitialCommit() throws Exception {
+        commit("{\"ID\": 1, \"NAME\": \"one\"}", "{\"ID\": 2, \"NAME\": \"two\"}");
+
+        Assertions.assertEquals(
+                "{\"changeType\": \"add\", \"newRecord\": {\"ID\": 1, \"NAME\": \"one\"}}\n" +
+                "{\"changeType\": \"add\", \"newRecord\": {\"ID\": 2, \"NAME\": \"two\"}}\n",
+                diff("initial", "HEAD", Collections.singletonList("ID")));
+    }
+
+    @Test
+    public void testThatNoChangesGiveAnEmptyChangeLog() throws Exception {
+        commit("{\"ID\": 1, \"NAME\": \"one\"}");
+        commit("{\"ID\": 1, \"NAME\": \"one\"}", "{\"ID\": 2, \"NAME\": \"two\"}");
+
+        Assertions.assertEquals("\n", diff("HEAD", "HEAD", Collections.singletonList("ID")));
+    }
+
+    @Test
+    public void testThatBinaryFormatsContainTheSameChanges() throws Exception {
+        commit("{\"ID\": 1, \"NAME\": \"one\", \"SAL\": 1.5}", "{\"ID\": 2, \"NAME\": \"two\", \"SAL\": null}");
+        commit("{\"ID\": 1, \"NAME\": \"en\", \"SAL\": 1.5}", "{\"ID\": 3, \"NAME\": \"three\", \"SAL\": 12345678901}",
+                "{\"ID\": 4, \"NAME\": \"four\", \"SAL\": 1234567890123456789.12}");
+
+        List<String> primaryKeys = Collections.singletonList("ID");
+        SnapshotRange range = snapshotStore.resolve(FILENAME, "HEAD~1", "HEAD");
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        changeLogCreator.writeChangeLog(range, primaryKeys, ChangeLogFormat.NDJSON, ndjson);
+        List<JsonNode> expected = readChanges(new JsonFactory(), ndjson);
+        Assertions.assertEquals(4, expected.size());
+        Assertions.assertEquals(new BigDecimal("1234567890123456789.12"), expected.get(3).get("newRecord").get("SAL").decimalValue());
+
+        for (ChangeLogFormat format : Arrays.asList(ChangeLogFormat.SMILE, ChangeLogFormat.CBOR)) {
+            JsonFactory factory = format == ChangeLogFormat.SMILE ? new SmileFactory() : new CBORFactory();
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            changeLogCreator.writeChangeLog(range, primaryKeys, format, binary);
+            Assertions.assertEquals(expected, readChanges(factory, binary), format.name());
+        }
+    }
+
+    @Test
+    public void testThatAFailedDiffIsNotCached() throws Exception {
+        DiffCache diffCache = new DiffCache();
+        changeLogCreator.setDiffCache(diffCache);
+        commit("{\"ID\": 1, \"NAME\": \"one\"}", "{\"ID\": 2, \"NAME\": \"two\"}");
+        commit("{\"ID\": 1, \"NAME\": \"en\"}", "{\"ID\": 2, \"NAME\": to}");
+
+        // The binary formats parse the records, and fail on the broken one after the first change is written
+        SnapshotRange range = snapshotStore.resolve(FILENAME, "HEAD~1", "HEAD");
+        for (ChangeLogFormat format : Arrays.asList(ChangeLogFormat.SMILE, ChangeLogFormat.CBOR)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Assertions.assertThrows(RuntimeException.class,
+                    () -> changeLogCreator.writeChangeLog(range, Collections.singletonList("ID"), format, out), format.name());
+        }
+        Assertions.assertEquals(0, diffCache.getStatistics().get("heapEntries"));
+    }
+
+    /**
+     * Reads decimals as BigDecimal with their scale, so that a decimal that lost precision doesn't compare equal.
+     */
+    private List<JsonNode> readChanges(JsonFactory factory, ByteArrayOutputStream changes) throws Exception {
+        ObjectMapper mapper = new ObjectMapper(factory)
+                .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+                .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+        return mapper.readValues(factory.createParser(changes.toByteArray()), JsonNode.class).readAll();
+    }
+
+    private void commit(String... lines) throws Exception {
+        StringBuilder snapshot = new StringBuilder();
+        for (String line : lines) snapshot.append(line).append('\n');
+        Files.write(new File(workingDirectory, FILENAME).toPath(), snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        snapshotStore.addSnapshot(FILENAME);
+        snapshotStore.commit("hr", Collections.singletonList(FILENAME));
+    }
+
+    private String diff(String fromRevision, String toRevision, List<String> primaryKeys) throws Exception {
+        String mergeJoinDiff = diff(TardisConfiguration.DiffEngine.MERGE_JOIN, fromRevision, toRevision, primaryKeys);
+        String gitDiff = diff(TardisConfiguration.DiffEngine.GIT, fromRevision, toRevision, primaryKeys);
+        Assertions.assertEquals(gitDiff, mergeJoinDiff, "The diff engines disagree");
+        return mergeJoinDiff;
+    }
+
+    private String diff(TardisConfiguration.DiffEngine diffEngine, String fromRevision, String toRevision, List<String> primaryKeys) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        changeLogCreator.setDiffEngine(diffEngine);
+        changeLogCreator.getDiff(FILENAME, primaryKeys, fromRevision, toRevision, out);
+        return out.toString("UTF-8");
+    }
+}
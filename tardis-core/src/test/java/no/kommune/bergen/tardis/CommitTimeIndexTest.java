@@ -0,0 +1,108 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Date;
+import java.util.TimeZone;
+
+
+public class CommitTimeIndexTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void testThatTheLastCommitAtOrBeforeTheTimeIsFound() throws Exception {
+        CommitTimeIndex index = new CommitTimeIndex(new File(directory, "index"));
+        ObjectId first = id(1), second = id(2), third = id(3);
+        index.add(first, 100);
+        index.add(second, 200);
+        index.add(third, 200);
+
+        Assertions.assertNull(index.findCommitBefore(99));
+        Assertions.assertEquals(first, index.findCommitBefore(100));
+        Assertions.assertEquals(first, index.findCommitBefore(199));
+        Assertions.assertEquals(third, index.findCommitBefore(200));
+        Assertions.assertEquals(third, index.findCommitBefore(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testThatCommitsAreFoundWhenTheClockHasGoneBackwards() throws Exception {
+        CommitTimeIndex index = new CommitTimeIndex(new File(directory, "index"));
+        index.add(id(1), 100);
+        index.add(id(2), 300);
+        index.add(id(3), 200);
+
+        Assertions.assertEquals(id(1), index.findCommitBefore(150));
+        Assertions.assertEquals(id(3), index.findCommitBefore(250));
+        Assertions.assertEquals(id(3), index.findCommitBefore(300));
+    }
+
+    @Test
+    public void testThatTheIndexIsRebuiltFromTheHistoryAndReloaded() throws Exception {
+        File file = new File(directory, "index");
+        try (Git git = Git.init().setDirectory(new File(directory, "repo")).call()) {
+            RevCommit first = commitAt(git, 1000);
+            RevCommit second = commitAt(git, 2000);
+
+            CommitTimeIndex index = new CommitTimeIndex(file);
+            index.open(git.getRepository());
+            Assertions.assertEquals(2, index.size());
+            Assertions.assertEquals(first, index.findCommitBefore(1500));
+
+            RevCommit third = commitAt(git, 3000);
+            index.add(third, third.getCommitTime());
+
+            CommitTimeIndex reloaded = new CommitTimeIndex(file);
+            reloaded.open(git.getRepository());
+            Assertions.assertEquals(3, reloaded.size());
+            Assertions.assertEquals(second, reloaded.findCommitBefore(2999));
+            Assertions.assertEquals(third, reloaded.findCommitBefore(3000));
+        }
+    }
+
+    @Test
+    public void testThatTheIndexCatchesUpWithCommitsMadeElsewhere() throws Exception {
+        File file = new File(directory, "index");
+        try (Git git = Git.init().setDirectory(new File(directory, "repo")).call()) {
+            RevCommit first = commitAt(git, 1000);
+            CommitTimeIndex index = new CommitTimeIndex(file);
+            index.open(git.getRepository());
+            Assertions.assertEquals(0, index.catchUp(git.getRepository()));
+
+            RevCommit second = commitAt(git, 2000);
+            RevCommit third = commitAt(git, 3000);
+            Assertions.assertEquals(2, index.catchUp(git.getRepository()));
+            Assertions.assertEquals(3, index.size());
+            Assertions.assertEquals(second, index.findCommitBefore(2999));
+            Assertions.assertEquals(third, index.findCommitBefore(3000));
+
+            CommitTimeIndex reloaded = new CommitTimeIndex(file);
+            reloaded.open(git.getRepository());
+            Assertions.assertEquals(3, reloaded.size());
+
+            // A rewritten history doesn't descend from the last indexed commit, so the index is rebuilt
+            git.reset().setMode(ResetCommand.ResetType.HARD).setRef(first.name()).call();
+            RevCommit rewritten = commitAt(git, 2500);
+            Assertions.assertEquals(2, index.catchUp(git.getRepository()));
+            Assertions.assertEquals(rewritten, index.findCommitBefore(3000));
+        }
+    }
+
+    private RevCommit commitAt(Git git, long seconds) throws Exception {
+        PersonIdent ident = new PersonIdent("tardis", "tardis@localhost", new Date(seconds * 1000L), TimeZone.getTimeZone("UTC"));
+        return git.commit().setMessage("at " + seconds).setAllowEmpty(true).setCommitter(ident).setAuthor(ident).call();
+    }
+
+    private ObjectId id(int n) {
+        return ObjectId.fromString(String.format("%040x", n));
+    }
+}
@@ -0,0 +1,293 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+public class DatabaseSnapshotExporterTest {
+
+    private static final int TABLE_COUNT = TardisFixture.TABLE_COUNT;
+
+    @TempDir
+    File workingDirectory;
+
+    private TardisFixture fixture;
+    private TardisConfiguration configuration;
+    private SnapshotStore snapshotStore;
+    private DatabaseSnapshotExporter exporter;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        fixture = new TardisFixture(workingDirectory);
+        configuration = fixture.configuration;
+        snapshotStore = fixture.snapshotStore;
+        exporter = fixture.exporter;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Test
+    public void testThatParallelExportResultsInOneCommit() throws Exception {
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(TABLE_COUNT, report.getWritten());
+
+        List<RevCommit> commits = new ArrayList<>();
+        try (Git git = Git.open(workingDirectory)) {
+            git.log().call().forEach(commits::add);
+        }
+        Assertions.assertEquals(2, commits.size());
+        Assertions.assertEquals("hr", commits.get(0).getShortMessage());
+
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            String snapshot = new String(Files.readAllBytes(new File(workingDirectory, "hr.t" + i + ".txt").toPath()), StandardCharsets.UTF_8);
+            Assertions.assertEquals("{\"ID\": 1, \"NAME\": \"one\"}\n{\"ID\": 2, \"NAME\": \"two\"}\n{\"ID\": 3, \"NAME\": \"three\"}\n", snapshot);
+        }
+    }
+
+    @Test
+    public void testThatUnchangedTablesAreNotWrittenAgain() throws Exception {
+        exporter.exportDataSource("hr");
+        File snapshot = new File(workingDirectory, "hr.t0.txt");
+        Assertions.assertTrue(snapshot.setLastModified(1000L));
+
+        try (Connection conn = configuration.getDataSource("hr").getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("update t1 set name = 'en' where id = 1");
+        }
+        ExportReport report = exporter.exportDataSource("hr");
+
+        Assertions.assertEquals(1, report.getWritten());
+        Assertions.assertEquals(TABLE_COUNT - 1, report.getUnchanged());
+        Assertions.assertEquals(0, report.getFailed());
+        Assertions.assertEquals(1000L, snapshot.lastModified());
+
+        try (Git git = Git.open(workingDirectory)) {
+            Assertions.assertTrue(git.status().call().isClean());
+        }
+        Assertions.assertFalse(new File(workingDirectory, "hr.t0.txt.tmp").exists());
+
+        report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(TABLE_COUNT, report.getUnchanged());
+        List<RevCommit> commits = new ArrayList<>();
+        try (Git git = Git.open(workingDirectory)) {
+            git.log().call().forEach(commits::add);
+        }
+        Assertions.assertEquals(3, commits.size());
+    }
+
+    @Test
+    public void testThatATimedOutQueryLeavesTheSnapshotAlone() throws Exception {
+        exporter.exportDataSource("hr");
+        String before = new String(Files.readAllBytes(new File(workingDirectory, "hr.t3.txt").toPath()), StandardCharsets.UTF_8);
+
+        Table table = configuration.getTable("hr", "t3");
+        table.setQuery("select a.x as id, b.x as name from system_range(1, 100000) a, system_range(1, 100000) b order by a.x, b.x desc");
+        table.setQueryTimeout(1);
+        table.setFetchSize(500);
+        table.setReadOnly(true);
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+
+        Assertions.assertEquals(1, report.getFailed());
+        Assertions.assertEquals(TABLE_COUNT - 1, report.getUnchanged());
+        Assertions.assertFalse(new File(workingDirectory, "hr.t3.txt.tmp").exists());
+        Assertions.assertEquals(before, new String(Files.readAllBytes(new File(workingDirectory, "hr.t3.txt").toPath()), StandardCharsets.UTF_8));
+        try (Git git = Git.open(workingDirectory)) {
+            Assertions.assertTrue(git.status().call().isClean());
+        }
+    }
+
+    @Test
+    public void testThatPartitionedExportsGiveTheSameSnapshot() throws Exception {
+        try (Connection conn = configuration.getDataSource("hr").getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("create table big (id integer primary key, name varchar(20))");
+            statement.execute("insert into big select x, 'name ' || x from system_range(1, 100)");
+        }
+        Table table = new Table();
+        table.setName("big");
+        table.setDataSourceName("hr");
+        table.setQuery("select id, name from big where {partition} order by id");
+        table.setPrimaryKeys(Collections.singletonList("ID"));
+        table.setPartitionColumn("id");
+        configuration.addTable(table);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= 100; i++) expected.append("{\"ID\": ").append(i).append(", \"NAME\": \"name ").append(i).append("\"}\n");
+        File snapshot = new File(workingDirectory, "hr.big.txt");
+
+        table.setPartitionBoundaries(Arrays.asList("10", "50", "200"));
+        Assertions.assertEquals(TABLE_COUNT + 1, exporter.exportDataSource("hr").getWritten());
+        Assertions.assertEquals(expected.toString(), new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.UTF_8));
+
+        table.setPartitionBoundaries(new ArrayList<>());
+        table.setPartitions(7);
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(TABLE_COUNT + 1, report.getUnchanged());
+        Assertions.assertEquals(expected.toString(), new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.UTF_8));
+        Assertions.assertEquals(1, workingDirectory.list((dir, name) -> name.startsWith("hr.big")).length);
+    }
+
+    @Test
+    public void testThatBoundariesOfACharacterColumnAreComparedAsStrings() throws Exception {
+        update("create table codes (code varchar(10) primary key)");
+        update("insert into codes values ('1'), ('2'), ('9'), ('10')");
+        Table table = new Table();
+        table.setName("codes");
+        table.setDataSourceName("hr");
+        table.setQuery("select code from codes where {partition} order by code");
+        table.setPrimaryKeys(Collections.singletonList("CODE"));
+        table.setPartitionColumn("code");
+        table.setPartitionBoundaries(Collections.singletonList("5"));
+        configuration.addTable(table);
+
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(0, report.getFailed());
+        Assertions.assertEquals("{\"CODE\": \"1\"}\n{\"CODE\": \"10\"}\n{\"CODE\": \"2\"}\n{\"CODE\": \"9\"}\n", read("hr.codes.txt"));
+    }
+
+    @Test
+    public void testThatRangesOfACharacterColumnAreNotComputed() throws Exception {
+        update("create table codes (code varchar(10) primary key)");
+        update("insert into codes values ('1'), ('2'), ('9'), ('10')");
+        Table table = new Table();
+        table.setName("codes");
+        table.setDataSourceName("hr");
+        table.setQuery("select code from codes where {partition} order by code");
+        table.setPrimaryKeys(Collections.singletonList("CODE"));
+        table.setPartitionColumn("code");
+        table.setPartitions(2);
+        configuration.addTable(table);
+
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(1, report.getFailed());
+        Assertions.assertFalse(new File(workingDirectory, "hr.codes.txt").exists());
+    }
+
+    @Test
+    public void testThatChangesAreMergedIntoThePreviousSnapshot() throws Exception {
+        DataSource dataSource = configuration.getDataSource("hr");
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("create table orders (id integer primary key, name varchar(20), modified integer)");
+            statement.execute("insert into orders values (1, 'one', 1), (2, 'two', 1), (3, 'three', 2), (4, 'four', 2)");
+        }
+        Table table = new Table();
+        table.setName("orders");
+        table.setDataSourceName("hr");
+        table.setQuery("select id, name, modified from orders where {changes} order by id");
+        table.setPrimaryKeys(Collections.singletonList("ID"));
+        table.setChangeTrackingColumn("modified");
+        configuration.addTable(table);
+
+        exporter.exportDataSource("hr");
+        Assertions.assertEquals("NUMBER\t2\n", read("hr.orders.hwm"));
+
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("update orders set name = 'to', modified = 3 where id = 2");
+            statement.execute("update orders set name = 'unseen' where id = 1");
+            statement.execute("delete from orders where id = 3");
+            statement.execute("insert into orders values (5, 'five', 3)");
+        }
+        ExportReport report = exporter.exportDataSource("hr");
+
+        Assertions.assertEquals(1, report.getWritten());
+        Assertions.assertEquals("{\"ID\": 1, \"NAME\": \"one\", \"MODIFIED\": 1}\n" +
+                "{\"ID\": 2, \"NAME\": \"to\", \"MODIFIED\": 3}\n" +
+                "{\"ID\": 4, \"NAME\": \"four\", \"MODIFIED\": 2}\n" +
+                "{\"ID\": 5, \"NAME\": \"five\", \"MODIFIED\": 3}\n", read("hr.orders.txt"));
+        Assertions.assertEquals("NUMBER\t3\n", read("hr.orders.hwm"));
+        try (Git git = Git.open(workingDirectory)) {
+            Assertions.assertTrue(git.status().call().isClean());
+        }
+
+        table.setFullExportInterval(1);
+        report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(1, report.getWritten());
+        Assertions.assertTrue(read("hr.orders.txt").startsWith("{\"ID\": 1, \"NAME\": \"unseen\", \"MODIFIED\": 1}\n"));
+    }
+
+    @Test
+    public void testThatIncrementalExportsNeedTheChangesPlaceholderAndNoPartitions() throws Exception {
+        Table table = configuration.getTable("hr", "t0");
+        table.setChangeTrackingColumn("id");
+        Assertions.assertEquals(1, exporter.exportDataSource("hr").getFailed());
+
+        table.setQuery("select id, name from t0 where {changes} and {partition} order by id");
+        table.setPartitionColumn("id");
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+        Assertions.assertEquals(1, report.getFailed());
+        Assertions.assertFalse(new File(workingDirectory, "hr.t0.txt").exists());
+    }
+
+    private void update(String sql) throws Exception {
+        fixture.update(sql);
+    }
+
+    private String read(String filename) throws Exception {
+        return fixture.read(filename);
+    }
+
+    @Test
+    public void testThatSnapshotsAreCommittedToABareRepository() throws Exception {
+        File repository = new File(workingDirectory, "bare");
+        configuration.setWorkingDirectory(repository.getAbsolutePath());
+        configuration.setBareRepository(true);
+        snapshotStore = new SnapshotStore();
+        snapshotStore.setConfiguration(configuration);
+        exporter.setSnapshotStore(snapshotStore);
+
+        exporter.exportDataSource("hr");
+        try (Connection conn = configuration.getDataSource("hr").getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("delete from t2 where id = 2");
+        }
+        ExportReport report = exporter.exportDataSource("hr");
+        exporter.shutdown();
+
+        Assertions.assertEquals(1, report.getWritten());
+        Assertions.assertEquals(TABLE_COUNT - 1, report.getUnchanged());
+        Assertions.assertFalse(new File(repository, "hr.t2.txt").exists());
+        Assertions.assertFalse(new File(repository, "hr.t2.txt.tmp").exists());
+        Assertions.assertEquals(new File(workingDirectory, "bare.tmp"), snapshotStore.getTempDirectory());
+        Assertions.assertEquals(0, snapshotStore.getTempDirectory().list().length);
+
+        List<RevCommit> commits = new ArrayList<>();
+        try (Git git = Git.open(repository)) {
+            Assertions.assertTrue(git.getRepository().isBare());
+            git.log().call().forEach(commits::add);
+        }
+        Assertions.assertEquals(3, commits.size());
+        Assertions.assertEquals("hr", commits.get(0).getShortMessage());
+
+        ChangeLogCreator changeLogCreator = new ChangeLogCreator();
+        changeLogCreator.setSnapshotStore(snapshotStore);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        changeLogCreator.getDiff("hr.t2.txt", Collections.singletonList("ID"), "HEAD~1", "HEAD", out);
+        Assertions.assertEquals("{\"changeType\": \"delete\", \"oldRecord\": {\"ID\": 2, \"NAME\": \"two\"}}\n", out.toString("UTF-8"));
+        Assertions.assertTrue(snapshotStore.log().contains("hr.t2.txt"));
+    }
+}
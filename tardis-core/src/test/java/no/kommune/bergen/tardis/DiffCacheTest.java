@@ -0,0 +1,97 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class DiffCacheTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    public void testThatTheLeastRecentlyUsedEntryIsEvicted() {
+        DiffCache cache = createCache(10, null);
+        cache.put(key(1), new byte[4]);
+        cache.put(key(2), new byte[4]);
+        cache.get(key(1));
+        cache.put(key(3), new byte[4]);
+
+        Assertions.assertNotNull(cache.get(key(1)));
+        Assertions.assertNull(cache.get(key(2)));
+        Assertions.assertNotNull(cache.get(key(3)));
+        Assertions.assertEquals(1L, cache.getStatistics().get("heapEvictions"));
+    }
+
+    @Test
+    public void testThatEntriesEvictedFromTheHeapAreReadFromDisk() {
+        DiffCache cache = createCache(4, directory.getAbsolutePath());
+        cache.put(key(1), new byte[]{1, 2, 3});
+        cache.put(key(2), new byte[]{4, 5, 6});
+
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, cache.get(key(1)));
+        Assertions.assertEquals(1L, cache.getStatistics().get("diskHits"));
+
+        DiffCache restarted = createCache(4, directory.getAbsolutePath());
+        Assertions.assertArrayEquals(new byte[]{4, 5, 6}, restarted.get(key(2)));
+    }
+
+    @Test
+    public void testThatConcurrentPutsOfTheSameEntryStoreOneFile() throws Exception {
+        DiffCache cache = createCache(4, directory.getAbsolutePath());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> cache.put(key(1), new byte[]{1, 2, 3})));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(1, cache.getStatistics().get("diskEntries"));
+        Assertions.assertEquals(3L, cache.getStatistics().get("diskBytes"));
+        Assertions.assertArrayEquals(new String[]{key(1).getFilename()}, directory.list());
+    }
+
+    @Test
+    public void testThatCapturedOutputIsCachedWhenCompleted() throws Exception {
+        DiffCache cache = createCache(100, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiffCache.Capture capture = cache.capture(key(1), out);
+        capture.write(new byte[]{1, 2, 3});
+        capture.close();
+        Assertions.assertNull(cache.get(key(1)));
+        capture.complete();
+
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, out.toByteArray());
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, cache.get(key(1)));
+
+        DiffCache.Capture tooLarge = cache.capture(key(2), new ByteArrayOutputStream());
+        tooLarge.write(new byte[101]);
+        tooLarge.complete();
+        Assertions.assertNull(cache.get(key(2)));
+    }
+
+    private DiffCache createCache(long maxHeapBytes, String directory) {
+        TardisConfiguration.DiffCacheConfig config = new TardisConfiguration.DiffCacheConfig();
+        config.setMaxHeapBytes(maxHeapBytes);
+        config.setMaxEntryBytes(100);
+        config.setDirectory(directory);
+        DiffCache cache = new DiffCache();
+        cache.setConfig(config);
+        return cache;
+    }
+
+    private DiffCache.Key key(int n) {
+        return new DiffCache.Key(ObjectId.zeroId(), ObjectId.fromString(String.format("%040x", n)),
+                Collections.singletonList("ID"), ChangeLogFormat.NDJSON);
+    }
+}
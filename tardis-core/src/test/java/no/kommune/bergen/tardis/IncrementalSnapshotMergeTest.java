@@ -0,0 +1,41 @@
+package no.kommune.bergen.tardis;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+
+public class IncrementalSnapshotMergeTest {
+
+    private final IncrementalSnapshotMerge merge = new IncrementalSnapshotMerge(Collections.singletonList("ID"));
+
+    @Test
+    public void testThatTheKeysDecideWhichRowsExist() throws IOException {
+        String previous = "{\"ID\": 1, \"V\": \"a\"}\n{\"ID\": 2, \"V\": \"b\"}\n{\"ID\": 3, \"V\": \"c\"}\n";
+        // 2 is changed, 3 is changed and then deleted, 4 is inserted after the keys were read, 5 is new
+        String changes = "{\"ID\": 2, \"V\": \"B\"}\n{\"ID\": 3, \"V\": \"C\"}\n{\"ID\": 4, \"V\": \"d\"}\n{\"ID\": 5, \"V\": \"e\"}";
+        String keys = "{\"ID\": 1}\n{\"ID\": 2}\n{\"ID\": 5}";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        merge.merge(in(previous), in(changes), in(keys), out);
+
+        Assertions.assertEquals("{\"ID\": 1, \"V\": \"a\"}\n{\"ID\": 2, \"V\": \"B\"}\n{\"ID\": 5, \"V\": \"e\"}", out.toString("UTF-8"));
+        Assertions.assertEquals(2, merge.getDroppedChanges());
+    }
+
+    @Test
+    public void testThatAKeyWithoutARowNeedsAFullExport() {
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                merge.merge(in("{\"ID\": 1}\n"), in(""), in("{\"ID\": 1}\n{\"ID\": 2}"), new ByteArrayOutputStream()));
+    }
+
+    private static InputStream in(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
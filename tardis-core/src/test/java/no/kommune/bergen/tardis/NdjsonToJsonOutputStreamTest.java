@@ -52,4 +52,29 @@ public class NdjsonToJsonOutputStreamTest {
 
         Assertions.assertEquals(String.format("[\n%1$s,\n%1$s\n]", json), byteArrayOutputStream.toString("UTF-8"));
     }
+
+
+    @Test
+    public void testThatBulkWritesGiveSameResultAsSingleBytes() throws IOException {
+
+        byte[] ndjson = "{\"id\": 1}\n{\"id\": 2}\n\n{\"id\": 3}\n".getBytes(utf8);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        NdjsonToJsonOutputStream singleBytes = new NdjsonToJsonOutputStream(expected);
+        for (byte b : ndjson) {
+            singleBytes.write(b);
+        }
+        singleBytes.close();
+
+        for (int chunkSize = 1; chunkSize <= ndjson.length; chunkSize++) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            NdjsonToJsonOutputStream sut = new NdjsonToJsonOutputStream(actual);
+            for (int off = 0; off < ndjson.length; off += chunkSize) {
+                sut.write(ndjson, off, Math.min(chunkSize, ndjson.length - off));
+            }
+            sut.close();
+
+            Assertions.assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"), "chunk size " + chunkSize);
+        }
+    }
 }
@@ -0,0 +1,39 @@
+package no.kommune.bergen.tardis;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+public class RecordKeyExtractorTest {
+
+    private final RecordKeyExtractor extractor = new RecordKeyExtractor(Arrays.asList("B", "A"));
+
+    @Test
+    public void testThatOnlyKeyColumnsAreExtractedInKeyOrder() throws IOException {
+        Object[] key = extractor.extract("{\"A\": 1, \"X\": {\"nested\": [1, 2]}, \"B\": \"b\", \"C\": 2.5}");
+
+        Assertions.assertArrayEquals(new Object[]{"b", 1}, key);
+    }
+
+    @Test
+    public void testThatMissingColumnsAndMissingLinesGiveNulls() throws IOException {
+        Assertions.assertArrayEquals(new Object[]{null, 1}, extractor.extract("{\"A\": 1, \"C\": null}"));
+        Assertions.assertArrayEquals(new Object[]{null, null}, extractor.extract(null));
+    }
+
+    @Test
+    public void testThatKeysAreComparedColumnByColumn() throws IOException {
+        Object[] a = extractor.extract("{\"A\": 2, \"B\": \"a\"}");
+        Object[] b = extractor.extract("{\"A\": 1, \"B\": \"b\"}");
+        Object[] c = extractor.extract("{\"A\": 3000000000, \"B\": \"b\"}");
+
+        Assertions.assertTrue(extractor.compare(a, b) < 0);
+        Assertions.assertTrue(extractor.compare(b, c) < 0);
+        Assertions.assertTrue(extractor.compare(c, b) > 0);
+        Assertions.assertEquals(0, extractor.compare(b, extractor.extract("{\"B\": \"b\", \"A\": 1.0}")));
+        Assertions.assertTrue(extractor.compare(b, extractor.extract(null)) < 0);
+    }
+}
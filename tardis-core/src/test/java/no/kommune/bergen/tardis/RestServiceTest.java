@@ -0,0 +1,124 @@
+package no.kommune.bergen.tardis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+
+public class RestServiceTest {
+
+    @TempDir
+    File workingDirectory;
+
+    private TardisFixture fixture;
+    private RestService restService;
+
+    private static final String CHANGE = "{\"changeType\": \"modify\", \"oldRecord\": {\"ID\": 1, \"NAME\": \"one\"}, " +
+            "\"newRecord\": {\"ID\": 1, \"NAME\": \"en\"}}\n";
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        fixture = new TardisFixture(workingDirectory);
+        restService = new RestService();
+        restService.setTardis(fixture.tardis);
+        fixture.tardis.exportGroup("hr");
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.tardis.exportGroup("hr");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Test
+    public void testThatUnknownDataSourcesAreNotFound() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        restService.getDataSourceChanges(new MockHttpServletRequest("GET", "/favicon.ico"), response, "favicon.ico", "HEAD", "HEAD", null, null);
+        Assertions.assertEquals(404, response.getStatus());
+
+        response = new MockHttpServletResponse();
+        restService.getDataSourceChanges(new MockHttpServletRequest("GET", "/hr"), response, "hr", "HEAD", "HEAD", null, null);
+        Assertions.assertEquals(200, response.getStatus());
+        Assertions.assertEquals("\n", response.getContentAsString());
+    }
+
+    @Test
+    public void testThatTheContentEncodingIsNegotiated() throws Exception {
+        Assertions.assertNull(getChanges(null).getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertEquals(CHANGE, getChanges(null).getContentAsString());
+
+        MockHttpServletResponse gzipped = getChanges("gzip");
+        Assertions.assertEquals("gzip", gzipped.getHeader(HttpHeaders.CONTENT_ENCODING));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getContentAsByteArray()))) {
+            Assertions.assertEquals(CHANGE, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        Assertions.assertEquals("gzip", getChanges("x-gzip").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertEquals("gzip", getChanges("*").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertEquals("gzip", getChanges("identity, gzip;q=0.5").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertNull(getChanges("identity").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertNull(getChanges("gzip;q=0").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertNull(getChanges("*;q=0").getHeader(HttpHeaders.CONTENT_ENCODING));
+        // An explicit gzip weighs more than the wildcard
+        Assertions.assertNull(getChanges("gzip;q=0, *").getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assertions.assertEquals(CHANGE, getChanges("gzip;q=0").getContentAsString());
+    }
+
+    @Test
+    public void testThatAChangeLogTheClientHasIsNotModified() throws Exception {
+        MockHttpServletResponse first = getChanges(null);
+        String eTag = first.getHeader(HttpHeaders.ETAG);
+        Assertions.assertNotNull(eTag);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/hr/t1");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        restService.getChanges(request, response, "hr", "t1", "HEAD~1", "HEAD", null, null);
+        Assertions.assertEquals(304, response.getStatus());
+        Assertions.assertEquals(0, response.getContentAsByteArray().length);
+
+        // The same changes compressed are another representation
+        Assertions.assertNotEquals(eTag, getChanges("gzip").getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    public void testThatOnlyChangeLogsBetweenCommitIdsAreImmutable() throws Exception {
+        SnapshotRange range = fixture.tardis.resolve("hr", "t1", "HEAD~1", "HEAD");
+        String from = range.getFromCommit().name();
+        String to = range.getToCommit().name();
+        Assertions.assertEquals("public, max-age=31536000, immutable",
+                getChanges(from.substring(0, 7), to, null, null).getHeader(HttpHeaders.CACHE_CONTROL));
+        Assertions.assertEquals("no-cache", getChanges("HEAD~1", to, null, null).getHeader(HttpHeaders.CACHE_CONTROL));
+
+        MockHttpServletResponse byDate = getChanges(null, null, "2000-01-01T00:00:00Z", new UtcDateFormat().format(new Date()));
+        Assertions.assertEquals(200, byDate.getStatus());
+        Assertions.assertEquals("no-cache", byDate.getHeader(HttpHeaders.CACHE_CONTROL));
+    }
+
+    private MockHttpServletResponse getChanges(String acceptEncoding) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/hr/t1");
+        if (acceptEncoding != null) request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        restService.getChanges(request, response, "hr", "t1", "HEAD~1", "HEAD", null, null);
+        Assertions.assertEquals(200, response.getStatus(), response.getErrorMessage());
+        return response;
+    }
+
+    private MockHttpServletResponse getChanges(String fromRevision, String toRevision, String fromDate, String toDate) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        restService.getChanges(new MockHttpServletRequest("GET", "/hr/t1"), response, "hr", "t1", fromRevision, toRevision, fromDate, toDate);
+        return response;
+    }
+}
@@ -0,0 +1,150 @@
+package no.kommune.bergen.tardis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ScheduledTaskConfigurationTest {
+
+    @TempDir
+    File statusDirectory;
+
+    private final TardisConfiguration config = new TardisConfiguration();
+    private final BlockingTardis tardis = new BlockingTardis();
+    private final List<Thread> threads = new ArrayList<>();
+    private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+
+    @BeforeEach
+    public void setUp() {
+        config.setStatusDirectory(statusDirectory.getAbsolutePath());
+        scheduler.setPoolSize(2);
+        scheduler.initialize();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        tardis.release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        scheduler.shutdown();
+        tardis.shutdown();
+    }
+
+    @Test
+    public void testThatARunIsSkippedWhileTheExportIsRunning() throws Exception {
+        ScheduledTaskConfiguration scheduling = createScheduling();
+        start(() -> scheduling.runExport("hr"));
+        Assertions.assertEquals("hr", tardis.nextStarted());
+
+        scheduling.runExport("hr");
+        tardis.release.countDown();
+        joinAll();
+        Assertions.assertEquals(1, tardis.exports.get());
+        Assertions.assertTrue(new File(statusDirectory, "hr.ok").exists());
+    }
+
+    @Test
+    public void testThatOnlyOneRunIsQueuedWhileTheExportIsRunning() throws Exception {
+        config.setOverlapPolicy(TardisConfiguration.OverlapPolicy.QUEUE);
+        ScheduledTaskConfiguration scheduling = createScheduling();
+        start(() -> scheduling.runExport("hr"));
+        Assertions.assertEquals("hr", tardis.nextStarted());
+
+        // Of two more runs the first is queued and the second skipped, and neither waits for the export
+        scheduling.runExport("hr");
+        scheduling.runExport("hr");
+        Assertions.assertEquals(1, tardis.exports.get());
+
+        tardis.release.countDown();
+        Assertions.assertEquals("hr", tardis.nextStarted());
+        joinAll();
+        Assertions.assertNull(tardis.started.poll(200, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(2, tardis.exports.get());
+    }
+
+    @Test
+    public void testThatNoMoreThanMaxConcurrentExportsRunAtOnce() throws Exception {
+        config.setMaxConcurrentExports(1);
+        ScheduledTaskConfiguration scheduling = createScheduling();
+        start(() -> scheduling.runExport("hr"));
+        Assertions.assertEquals("hr", tardis.nextStarted());
+
+        // The run waiting for a slot is tried again later, instead of waiting on the calling thread
+        scheduling.runExport("finance");
+        Assertions.assertNull(tardis.started.poll(200, TimeUnit.MILLISECONDS));
+
+        tardis.release.countDown();
+        Assertions.assertEquals("finance", tardis.nextStarted());
+        joinAll();
+        Assertions.assertEquals(2, tardis.exports.get());
+        Assertions.assertEquals(1, tardis.maxRunning.get());
+    }
+
+    private ScheduledTaskConfiguration createScheduling() {
+        return new ScheduledTaskConfiguration(config, tardis, null) {
+            @Override
+            public ThreadPoolTaskScheduler exportTaskScheduler() {
+                return scheduler;
+            }
+        };
+    }
+
+    private void start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void joinAll() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(10000);
+            Assertions.assertFalse(thread.isAlive());
+        }
+    }
+
+    /**
+     * Holds every export until released, and tells which data sources have started exporting.
+     */
+    private static class BlockingTardis extends Tardis {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<String> started = new LinkedBlockingQueue<>();
+        final AtomicInteger exports = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public ExportReport exportGroup(String group) {
+            exports.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.add(group);
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            return new ExportReport(group);
+        }
+
+        String nextStarted() throws InterruptedException {
+            String group = started.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(group, "No export started within 10 seconds");
+            return group;
+        }
+    }
+}
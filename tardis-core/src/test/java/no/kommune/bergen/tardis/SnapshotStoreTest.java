@@ -0,0 +1,90 @@
+package no.kommune.bergen.tardis;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class SnapshotStoreTest {
+
+    @TempDir
+    File workingDirectory;
+
+    private SnapshotStore snapshotStore;
+
+    @BeforeEach
+    public void setUp() {
+        snapshotStore = new SnapshotStore();
+        snapshotStore.setWorkingDirectory(workingDirectory.getAbsolutePath());
+    }
+
+    @Test
+    public void testThatTheLogListsCommitsNewestFirstWithTheirFiles() throws Exception {
+        commit("hr", "hr.emp.txt", "hr.dept.txt");
+        commit("northwind", "northwind.customers.txt");
+        commit("hr", "hr.emp.txt");
+
+        List<RevCommit> commits = getCommits();
+        String expected = line(commits.get(0), "hr", "hr.emp.txt")
+                + line(commits.get(1), "northwind", "northwind.customers.txt")
+                + line(commits.get(2), "hr", "hr.dept.txt, hr.emp.txt")
+                + line(commits.get(3), "initial commit", "");
+        Assertions.assertEquals(expected, snapshotStore.log());
+
+        StringWriter limited = new StringWriter();
+        snapshotStore.log(null, null, "hr", 1, limited);
+        Assertions.assertEquals(line(commits.get(0), "hr", "hr.emp.txt"), limited.toString());
+
+        // the log is rebuilt from the history when the side index is missing
+        Files.delete(new File(workingDirectory, ".git/tardis-commit-log").toPath());
+        SnapshotStore reopened = new SnapshotStore();
+        reopened.setWorkingDirectory(workingDirectory.getAbsolutePath());
+        Assertions.assertEquals(expected, reopened.log());
+    }
+
+    @Test
+    public void testThatTheLogCatchesUpWithCommitsMadeElsewhere() throws Exception {
+        commit("hr", "hr.emp.txt");
+        snapshotStore.log();
+
+        Files.write(new File(workingDirectory, "hr.emp.txt").toPath(), "{\"ID\": 0}\n".getBytes(StandardCharsets.UTF_8));
+        try (Git git = Git.open(workingDirectory)) {
+            git.commit().setAll(true).setMessage("fixed by hand").call();
+        }
+
+        List<RevCommit> commits = getCommits();
+        Assertions.assertTrue(snapshotStore.log().startsWith(line(commits.get(0), "fixed by hand", "hr.emp.txt")
+                + line(commits.get(1), "hr", "hr.emp.txt")));
+    }
+
+    private void commit(String dataSource, String... filenames) throws Exception {
+        for (String filename : filenames) {
+            Files.write(new File(workingDirectory, filename).toPath(), ("{\"ID\": " + System.nanoTime() + "}\n").getBytes(StandardCharsets.UTF_8));
+            snapshotStore.addSnapshot(filename);
+        }
+        snapshotStore.commit(dataSource, Arrays.asList(filenames));
+    }
+
+    private List<RevCommit> getCommits() throws Exception {
+        List<RevCommit> commits = new ArrayList<>();
+        try (Git git = Git.open(workingDirectory)) {
+            git.log().call().forEach(commits::add);
+        }
+        return commits;
+    }
+
+    private String line(RevCommit commit, String message, String files) {
+        return commit.getName() + " " + new UtcDateFormat().format(new java.util.Date(commit.getCommitTime() * 1000L)) + " " + message + "\n" + files + "\n\n";
+    }
+}
@@ -0,0 +1,162 @@
+package no.kommune.bergen.tardis;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+
+public class TardisConfigurationTest {
+
+    @Test
+    public void testThatDataSourcesForTheSameDatabaseShareAPool() {
+        TardisConfiguration configuration = new TardisConfiguration();
+        configuration.setDataSources(Arrays.asList(
+                dataSourceConfig("orders", "jdbc:h2:mem:sales", "tardis", 4),
+                dataSourceConfig("products", "jdbc:h2:mem:sales", "tardis", 6),
+                dataSourceConfig("audit", "jdbc:h2:mem:sales", "auditor", 2),
+                dataSourceConfig("hr", "jdbc:h2:mem:hr", "tardis", 3)));
+
+        try {
+            HikariDataSource orders = (HikariDataSource) configuration.getDataSource("orders");
+            Assertions.assertSame(orders, configuration.getDataSource("products"));
+            Assertions.assertNotSame(orders, configuration.getDataSource("audit"));
+            Assertions.assertNotSame(orders, configuration.getDataSource("hr"));
+            Assertions.assertEquals(6, orders.getMaximumPoolSize());
+            Assertions.assertNull(configuration.getDataSource("unknown"));
+            Assertions.assertEquals(5, configuration.getConnectionsPerExport("orders"));
+            Assertions.assertEquals(3, configuration.getConnectionsPerExport("hr"));
+        } finally {
+            configuration.closePools();
+        }
+    }
+
+    @Test
+    public void testThatReloadReplacesTheRegistry() {
+        TardisConfiguration configuration = new TardisConfiguration();
+        configuration.setDataSources(Arrays.asList(
+                dataSourceConfig("orders", "jdbc:h2:mem:sales", "tardis", 4),
+                dataSourceConfig("hr", "jdbc:h2:mem:hr", "tardis", 3)));
+        configuration.setTables(new ArrayList<>(Arrays.asList(table("orders", "order"), table("hr", "emp"))));
+
+        try {
+            Table emp = configuration.getTable("hr", "emp");
+            Assertions.assertNotNull(emp);
+            Assertions.assertEquals(Arrays.asList("orders", "hr"), new ArrayList<>(configuration.getDataSourceNames()));
+            Object orders = configuration.getDataSource("orders");
+            Object hr = configuration.getDataSource("hr");
+
+            TableRegistry registry = configuration.reload(
+                    Arrays.asList(table("orders", "order"), table("orders", "line")),
+                    Arrays.asList(dataSourceConfig("orders", "jdbc:h2:mem:sales", "tardis", 4),
+                            dataSourceConfig("hr", "jdbc:h2:mem:hr2", "tardis", 3)));
+
+            Assertions.assertSame(registry, configuration.getRegistry());
+            Assertions.assertNull(configuration.getTable("hr", "emp"));
+            Assertions.assertNotNull(configuration.getTable("orders", "line"));
+            Assertions.assertEquals(2, configuration.getTables("orders").size());
+            Assertions.assertEquals(Collections.singletonList("orders"), new ArrayList<>(configuration.getDataSourceNames()));
+            Assertions.assertSame(orders, configuration.getDataSource("orders"));
+            Assertions.assertNotSame(hr, configuration.getDataSource("hr"));
+        } finally {
+            configuration.closePools();
+        }
+    }
+
+    @Test
+    public void testThatReloadResizesUsedPoolsAndClosesUnusedOnes() throws Exception {
+        TardisConfiguration configuration = new TardisConfiguration();
+        configuration.setDataSources(Arrays.asList(
+                dataSourceConfig("orders", "jdbc:h2:mem:sales", "tardis", 4),
+                dataSourceConfig("hr", "jdbc:h2:mem:hr", "tardis", 3)));
+
+        try {
+            HikariDataSource orders = (HikariDataSource) configuration.getDataSource("orders");
+            HikariDataSource hr = (HikariDataSource) configuration.getDataSource("hr");
+            Connection conn = hr.getConnection();
+
+            configuration.reload(Collections.emptyList(), Arrays.asList(
+                    dataSourceConfig("orders", "jdbc:h2:mem:sales", "tardis", 8),
+                    dataSourceConfig("hr", "jdbc:h2:mem:hr2", "tardis", 3)));
+            Assertions.assertEquals(8, orders.getHikariConfigMXBean().getMaximumPoolSize());
+            Assertions.assertFalse(hr.isClosed());
+
+            conn.close();
+            configuration.closeRetiredPools();
+            Assertions.assertTrue(hr.isClosed());
+            Assertions.assertFalse(orders.isClosed());
+        } finally {
+            configuration.closePools();
+        }
+    }
+
+    @Test
+    public void testThatReloadKeepsOverridesFromTheEnvironment(@TempDir File directory) throws Exception {
+        File configFile = new File(directory, "application.yml");
+        Files.write(configFile.toPath(), String.join("\n",
+                "tardis:",
+                "  dataSources:",
+                "    - name: hr",
+                "      url: jdbc:h2:mem:hr",
+                "  tables:",
+                "    - name: emp",
+                "      dataSourceName: hr",
+                "      query: select * from emp",
+                "      primaryKeys: ID",
+                "").getBytes(StandardCharsets.UTF_8));
+
+        StandardEnvironment environment = new StandardEnvironment();
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("tardis.dataSources[0].name", "hr");
+        overrides.put("tardis.dataSources[0].url", "jdbc:h2:mem:hr");
+        overrides.put("tardis.dataSources[0].password", "secret");
+        environment.getPropertySources().addFirst(new MapPropertySource("commandLineArgs", overrides));
+        environment.getPropertySources().addLast(new MapPropertySource(
+                "Config resource 'file [" + configFile.getAbsolutePath() + "]' via location 'optional:file:./'",
+                Collections.singletonMap("tardis.tables[0].name", "dept")));
+
+        TardisConfiguration configuration = new TardisConfiguration();
+        configuration.setConfigFile(configFile.getAbsolutePath());
+        TableRegistryReloader reloader = new TableRegistryReloader();
+        reloader.setConfiguration(configuration);
+        reloader.setEnvironment(environment);
+        reloader.setEventPublisher(event -> {
+        });
+
+        TableRegistry registry = reloader.reload();
+        Assertions.assertEquals("secret", registry.getDataSourceConfig("hr").getPassword());
+        Assertions.assertEquals(Collections.singletonList("emp"),
+                registry.getTables().stream().map(Table::getName).collect(Collectors.toList()));
+    }
+
+    private Table table(String dataSourceName, String name) {
+        Table table = new Table();
+        table.setDataSourceName(dataSourceName);
+        table.setName(name);
+        table.setQuery("select * from " + name);
+        table.setPrimaryKeys(Collections.singletonList("id"));
+        return table;
+    }
+
+    private TardisConfiguration.DataSourceConfig dataSourceConfig(String name, String url, String username, int maximumPoolSize) {
+        TardisConfiguration.DataSourceConfig config = new TardisConfiguration.DataSourceConfig();
+        config.setName(name);
+        config.setUrl(url);
+        config.setUsername(username);
+        config.setMaximumPoolSize(maximumPoolSize);
+        return config;
+    }
+}
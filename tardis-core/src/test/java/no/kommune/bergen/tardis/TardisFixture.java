@@ -0,0 +1,77 @@
+package no.kommune.bergen.tardis;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+
+/**
+ * An in-memory H2 database with the tables t0 to t5 in the data source hr, each with the rows 1 one, 2 two and
+ * 3 three, and the Tardis components to export and diff them, wired up the way Spring does.
+ */
+class TardisFixture implements AutoCloseable {
+
+    static final int TABLE_COUNT = 6;
+
+    final File workingDirectory;
+    final TardisConfiguration configuration = new TardisConfiguration();
+    final SnapshotStore snapshotStore = new SnapshotStore();
+    final DatabaseSnapshotExporter exporter = new DatabaseSnapshotExporter();
+    final ChangeLogCreator changeLogCreator = new ChangeLogCreator();
+    final Tardis tardis = new Tardis();
+
+    TardisFixture(File workingDirectory) throws Exception {
+        this.workingDirectory = workingDirectory;
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+        configuration.setWorkingDirectory(workingDirectory.getAbsolutePath());
+        configuration.addDatasource("hr", dataSource);
+
+        TardisConfiguration.DataSourceConfig dataSourceConfig = new TardisConfiguration.DataSourceConfig();
+        dataSourceConfig.setName("hr");
+        dataSourceConfig.setExportThreads(3);
+        configuration.setDataSources(Collections.singletonList(dataSourceConfig));
+
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            update("create table t" + i + " (id integer primary key, name varchar(20))");
+            update("insert into t" + i + " values (1, 'one'), (2, 'two'), (3, 'three')");
+
+            Table table = new Table();
+            table.setName("t" + i);
+            table.setDataSourceName("hr");
+            table.setQuery("select id, name from t" + i + " order by id");
+            table.setPrimaryKeys(Collections.singletonList("ID"));
+            configuration.addTable(table);
+        }
+
+        snapshotStore.setConfiguration(configuration);
+        exporter.setConfiguration(configuration);
+        exporter.setSnapshotStore(snapshotStore);
+        changeLogCreator.setSnapshotStore(snapshotStore);
+        tardis.setConfiguration(configuration);
+        tardis.setExporter(exporter);
+        tardis.setChangeLogCreator(changeLogCreator);
+        tardis.setSnapshotStore(snapshotStore);
+    }
+
+    void update(String sql) throws Exception {
+        try (Connection conn = configuration.getDataSource("hr").getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    String read(String filename) throws Exception {
+        return new String(Files.readAllBytes(new File(workingDirectory, filename).toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        exporter.shutdown();
+        tardis.shutdown();
+    }
+}
@@ -0,0 +1,120 @@
+package no.kommune.bergen.tardis;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+
+public class TardisTest {
+
+    @TempDir
+    File workingDirectory;
+
+    private TardisFixture fixture;
+    private Tardis tardis;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        fixture = new TardisFixture(workingDirectory);
+        tardis = fixture.tardis;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Test
+    public void testThatExportsAndDiffsAreMetered() throws Exception {
+        TardisMetrics metrics = new TardisMetrics();
+        metrics.setMeterRegistry(new SimpleMeterRegistry());
+        fixture.exporter.setMetrics(metrics);
+        fixture.snapshotStore.setMetrics(metrics);
+        tardis.setMetrics(metrics);
+
+        tardis.exportGroup("hr");
+        long firstLength = new File(workingDirectory, "hr.t4.txt").length();
+        fixture.update("insert into t4 values (4, 'four')");
+        tardis.exportGroup("hr");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tardis.getDiff("hr", "t4", "HEAD~1", "HEAD", out);
+
+        MeterRegistry registry = metrics.getMeterRegistry();
+        Assertions.assertEquals(7, registry.get(TardisMetrics.EXPORT_ROWS).tag("table", "t4").counter().count());
+        Assertions.assertEquals(2, registry.get(TardisMetrics.EXPORT_QUERY).tag("table", "t4").timer().count());
+        Assertions.assertEquals(2, registry.get(TardisMetrics.EXPORT).tags("table", "t4", "result", "written").timer().count());
+        Assertions.assertEquals(1, registry.get(TardisMetrics.EXPORT).tags("table", "t0", "result", "unchanged").timer().count());
+        Assertions.assertEquals(TardisFixture.TABLE_COUNT - 1, registry.get(TardisMetrics.EXPORT).tag("result", "unchanged").timers().size());
+        Assertions.assertEquals(TardisFixture.TABLE_COUNT + 1, registry.get(TardisMetrics.STORE_ADD).timers().stream().mapToLong(Timer::count).sum());
+        Assertions.assertEquals(firstLength + new File(workingDirectory, "hr.t4.txt").length(),
+                registry.get(TardisMetrics.EXPORT_BYTES).tag("table", "t4").counter().count());
+        Assertions.assertEquals(2, registry.get(TardisMetrics.STORE_COMMIT).tag("dataSource", "hr").timer().count());
+
+        Assertions.assertEquals(1, registry.get(TardisMetrics.DIFF_RESOLVE).tag("table", "t4").timer().count());
+        Assertions.assertEquals(1, registry.get(TardisMetrics.DIFF).tags("table", "t4", "format", "ndjson").timer().count());
+        Assertions.assertEquals(out.size(), registry.get(TardisMetrics.DIFF_BYTES).tag("table", "t4").counter().count());
+    }
+
+    @Test
+    public void testThatTheChangesOfADataSourceAreMultiplexed() throws Exception {
+        tardis.exportGroup("hr");
+        fixture.update("update t1 set name = 'en' where id = 1");
+        fixture.update("delete from t4 where id = 3");
+        fixture.update("insert into t4 values (4, 'four')");
+        tardis.exportGroup("hr");
+
+        Map<Table, SnapshotRange> ranges = tardis.resolveChanged("hr", "HEAD~1", "HEAD");
+        Assertions.assertEquals(Arrays.asList("t1", "t4"), ranges.keySet().stream().map(Table::getName).collect(Collectors.toList()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tardis.getDiffs("hr", ranges, out);
+        List<String> lines = Arrays.asList(out.toString("UTF-8").split("\n"));
+        Assertions.assertEquals(3, lines.size(), lines.toString());
+        Assertions.assertTrue(lines.contains("{\"table\": \"t1\", \"changeType\": \"modify\", \"oldRecord\": {\"ID\": 1, \"NAME\": \"one\"}, \"newRecord\": {\"ID\": 1, \"NAME\": \"en\"}}"), lines.toString());
+        Assertions.assertTrue(lines.contains("{\"table\": \"t4\", \"changeType\": \"delete\", \"oldRecord\": {\"ID\": 3, \"NAME\": \"three\"}}"), lines.toString());
+        Assertions.assertTrue(lines.contains("{\"table\": \"t4\", \"changeType\": \"add\", \"newRecord\": {\"ID\": 4, \"NAME\": \"four\"}}"), lines.toString());
+
+        out = new ByteArrayOutputStream();
+        tardis.getDiffs("hr", tardis.resolveChanged("hr", "HEAD", "HEAD"), out);
+        Assertions.assertEquals("\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testThatMultiplexedDiffsStopWhenTheClientIsGone() throws Exception {
+        tardis.exportGroup("hr");
+        for (int i = 0; i < TardisFixture.TABLE_COUNT; i++) {
+            fixture.update("update t" + i + " set name = 'en' where id = 1");
+        }
+        tardis.exportGroup("hr");
+
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        Map<Table, SnapshotRange> ranges = tardis.resolveChanged("hr", "HEAD~1", "HEAD");
+        Assertions.assertEquals(TardisFixture.TABLE_COUNT, ranges.size());
+        Assertions.assertThrows(IOException.class, () -> tardis.getDiffs("hr", ranges, out));
+
+        ChangeLogMultiplexer multiplexer = new ChangeLogMultiplexer(new ByteArrayOutputStream());
+        OutputStream tableOut = multiplexer.open("t0");
+        multiplexer.close();
+        tableOut.write("{\"changeType\": \"add\"}".getBytes());
+        Assertions.assertThrows(IOException.class, tableOut::close);
+    }
+}